@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing map from block coordinates packed into longs to int
+ * flags.
+ *
+ * Lookups don't allocate anything, which matters because these maps back
+ * the point volumes checked on every player and vehicle move.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class BlockKeyMap {
+
+    // x and z get 26 bits each, y gets 12
+    // this key has x = -2^25, which is well outside the world border, so it
+    // can never be a real block
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 8;
+
+    public static long key(int x, int y, int z) {
+        return (((long)x & 0x3ffffffL) << 38) |
+               (((long)z & 0x3ffffffL) << 12) |
+               ((long)y & 0xfffL);
+    }
+
+    public static int keyX(long key) {
+        return (int)(key >> 38);
+    }
+
+    public static int keyY(long key) {
+        return (int)((key << 52) >> 52);
+    }
+
+    public static int keyZ(long key) {
+        return (int)((key << 26) >> 38);
+    }
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+
+    public BlockKeyMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public BlockKeyMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (expected * 2)) capacity <<= 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // ORs the flags into any already set for the block, returns true if the block is new
+    public boolean add(int x, int y, int z, int flags) {
+        return add(key(x, y, z), flags);
+    }
+
+    public boolean add(long key, int flags) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                values[i] |= flags;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = flags;
+        size++;
+        // keep the load factor under 1/2 so probe runs stay short
+        if ((size * 2) > keys.length)
+            resize(keys.length * 2);
+        return true;
+    }
+
+    public boolean contains(int x, int y, int z) {
+        return contains(key(x, y, z));
+    }
+
+    public boolean contains(long key) {
+        return indexOf(key) != -1;
+    }
+
+    // returns 0 if the block isn't in the map
+    public int get(int x, int y, int z) {
+        return get(key(x, y, z));
+    }
+
+    public int get(long key) {
+        int i = indexOf(key);
+        return (i == -1) ? 0 : values[i];
+    }
+
+    public long[] keys() {
+        long[] out = new long[size];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != EMPTY) out[j++] = keys[i];
+        return out;
+    }
+
+    private int indexOf(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        long k;
+        while ((k = keys[i]) != EMPTY) {
+            if (k == key) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key == EMPTY) continue;
+            int i = hash(key) & mask;
+            while (keys[i] != EMPTY)
+                i = (i + 1) & mask;
+            keys[i] = key;
+            values[i] = oldValues[j];
+        }
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+}
@@ -18,6 +18,7 @@ package com.frdfsnlght.transporter;
 import com.frdfsnlght.transporter.api.GateException;
 import com.frdfsnlght.transporter.api.TransporterException;
 import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
@@ -31,14 +32,16 @@ public class BlockListenerImpl implements Listener {
 
     @EventHandler(priority = EventPriority.NORMAL)
     public void onBlockCanBuild(BlockCanBuildEvent event) {
-        LocalGateImpl gate = Gates.findGateForPortal(event.getBlock().getLocation());
+        Block block = event.getBlock();
+        LocalGateImpl gate = Gates.findGate(block.getWorld(), block.getX(), block.getY(), block.getZ(), GateMap.PORTAL);
         if ((gate != null) && gate.isOpen())
             event.setBuildable(false);
     }
 
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     public void onBlockDamage(BlockDamageEvent event) {
-        LocalGateImpl gate = Gates.findGateForProtection(event.getBlock().getLocation());
+        Block block = event.getBlock();
+        LocalGateImpl gate = Gates.findGate(block.getWorld(), block.getX(), block.getY(), block.getZ(), GateMap.PROTECTION);
         if (gate != null) {
             event.setCancelled(true);
             gate.onProtect(event.getBlock().getLocation());
@@ -47,14 +50,17 @@ public class BlockListenerImpl implements Listener {
 
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     public void onBlockBreak(BlockBreakEvent event) {
-        LocalGateImpl gate = Gates.findGateForProtection(event.getBlock().getLocation());
+        Block block = event.getBlock();
+        GateMap.Lookup gates = Gates.findGates(block.getWorld(), block.getX(), block.getY(), block.getZ());
+        if (gates == null) return;
+        LocalGateImpl gate = gates.getGate(GateMap.PROTECTION);
         if (gate != null) {
             event.setCancelled(true);
             gate.onProtect(event.getBlock().getLocation());
             return;
         }
 
-        gate = Gates.findGateForScreen(event.getBlock().getLocation());
+        gate = gates.getGate(GateMap.SCREEN);
         if (gate != null) {
             Context ctx = new Context(event.getPlayer());
             try {
@@ -73,10 +79,9 @@ public class BlockListenerImpl implements Listener {
     public void onSignChange(SignChangeEvent event) {
         if (! Config.getAllowSignCreation()) return;
 
-        Block block = event.getBlock();
-        LocalGateImpl gate = Gates.findGateForScreen(block.getLocation());
+        final Block block = event.getBlock();
+        LocalGateImpl gate = Gates.findGate(block.getWorld(), block.getX(), block.getY(), block.getZ(), GateMap.SCREEN);
         if (gate != null) return;
-        Context ctx = new Context(event.getPlayer());
         String gateName = null;
         String link = null;
         boolean reverse = false;
@@ -95,14 +100,29 @@ public class BlockListenerImpl implements Listener {
             }
         }
         if (gateName == null) return;
-        try {
-            DesignMatch match = Designs.matchScreen(block.getLocation());
-            if (match == null) return;
 
+        final Player player = event.getPlayer();
+        final String fGateName = gateName;
+        final String fLink = link;
+        final boolean fReverse = reverse;
+        Designs.matchScreen(block.getLocation(), new Designs.MatchCallback() {
+            @Override
+            public void onMatch(DesignMatch match) {
+                if (match == null) return;
+                if (! player.isOnline()) return;
+                // someone else may have beaten us to it
+                if (Gates.findGate(block.getWorld(), block.getX(), block.getY(), block.getZ(), GateMap.SCREEN) != null) return;
+                createGate(new Context(player), match, fGateName, fLink, fReverse);
+            }
+        });
+    }
+
+    private void createGate(Context ctx, DesignMatch match, String gateName, String link, boolean reverse) {
+        try {
             Permissions.require(ctx.getPlayer(), "trp.create." + match.design.getName());
             Economy.requireFunds(ctx.getPlayer(), match.design.getCreateCost());
 
-            gate = match.design.create(match, ctx.getPlayer().getName(), gateName);
+            LocalGateImpl gate = match.design.create(match, ctx.getPlayer().getName(), gateName);
             Gates.add(gate, true);
             ctx.sendLog("created gate '%s'", gate.getName());
             Gates.setSelectedGate(ctx.getPlayer(), gate);
@@ -124,7 +144,8 @@ public class BlockListenerImpl implements Listener {
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     public void onBlockFromTo(BlockFromToEvent event) {
         // This prevents liquid portals from flowing out
-        LocalGateImpl gate = Gates.findGateForPortal(event.getBlock().getLocation());
+        Block block = event.getBlock();
+        LocalGateImpl gate = Gates.findGate(block.getWorld(), block.getX(), block.getY(), block.getZ(), GateMap.PORTAL);
         if (gate != null) {
             event.setCancelled(true);
         }
@@ -132,11 +153,13 @@ public class BlockListenerImpl implements Listener {
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onBlockRedstone(BlockRedstoneEvent event) {
-        LocalGateImpl g = Gates.findGateForTrigger(event.getBlock().getLocation());
-        if (! (g instanceof LocalBlockGateImpl)) return;
-        LocalBlockGateImpl gate = (LocalBlockGateImpl)g;
+        Block b = event.getBlock();
+        GateMap.Lookup gates = Gates.findGates(b.getWorld(), b.getX(), b.getY(), b.getZ());
+        if (gates == null) return;
+        LocalGateImpl g = gates.getGate(GateMap.TRIGGER);
+        LocalBlockGateImpl gate = (g instanceof LocalBlockGateImpl) ? (LocalBlockGateImpl)g : null;
         if (gate != null) {
-            DesignBlockDetail block = gate.getGateBlock(event.getBlock().getLocation()).getDetail();
+            DesignBlockDetail block = gate.getGateBlock(b.getX(), b.getY(), b.getZ()).getDetail();
             Utils.debug("isOpen=%s", gate.isOpen());
             Utils.debug("triggerOpenMode=%s", block.getTriggerOpenMode());
             Utils.debug("triggerCloseMode=%s", block.getTriggerCloseMode());
@@ -173,12 +196,12 @@ public class BlockListenerImpl implements Listener {
             return;
         }
 
-        g = Gates.findGateForSwitch(event.getBlock().getLocation());
+        g = gates.getGate(GateMap.SWITCH);
         if (! (g instanceof LocalBlockGateImpl)) return;
         gate = (LocalBlockGateImpl)g;
 
         if (gate != null) {
-            DesignBlockDetail block = gate.getGateBlock(event.getBlock().getLocation()).getDetail();
+            DesignBlockDetail block = gate.getGateBlock(b.getX(), b.getY(), b.getZ()).getDetail();
             boolean nextLink = false;
             switch (block.getSwitchMode()) {
                 case HIGH: nextLink = (event.getNewCurrent() > 0) && (event.getOldCurrent() == 0); break;
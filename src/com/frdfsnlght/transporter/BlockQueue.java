@@ -0,0 +1,231 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Location;
+import org.bukkit.World;
+
+/**
+ * Places blocks for gates and designs a few at a time so big jobs are
+ * spread over several ticks.
+ *
+ * Writes are done in priority order, and each tick stops when either the
+ * time or block budget runs out. The budget covers everything placed in the
+ * tick, however many jobs are submitted. A write to a block that already has a
+ * pending write replaces it, so only the last one is placed.
+ *
+ * All methods must be called on the main thread.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class BlockQueue {
+
+    // priorities, lower goes first
+    public static final int PORTAL = 0;
+    public static final int BOX = 1;
+    public static final int BUILD = 2;
+
+    private static final ArrayDeque<Write>[] queues;
+
+    // the latest pending write for each block, by world
+    private static final Map<World,LongObjectMap<Write>> pending = new HashMap<World,LongObjectMap<Write>>();
+
+    private static int taskId = -1;
+
+    // budget used since the task last ran, shared by every submit in the tick
+    private static int blocksUsed = 0;
+    private static long nanosUsed = 0;
+
+    static {
+        @SuppressWarnings("unchecked")
+        ArrayDeque<Write>[] q = new ArrayDeque[BUILD + 1];
+        for (int i = 0; i < q.length; i++)
+            q[i] = new ArrayDeque<Write>();
+        queues = q;
+    }
+
+    public static Job submit(int priority, Job job) {
+        for (Write write : job.writes) {
+            LongObjectMap<Write> worldPending = pending.get(write.world);
+            if (worldPending == null) {
+                worldPending = new LongObjectMap<Write>();
+                pending.put(write.world, worldPending);
+            }
+            Write old = worldPending.put(write.key, write);
+            if (old != null) old.supersede();
+            queues[priority].add(write);
+        }
+        job.writes = null;
+        if (job.total == 0)
+            job.complete();
+        else
+            run();
+        return job;
+    }
+
+    // returns the block that will end up at the location once pending writes are done
+    public static BuildableBlock getPending(Location location) {
+        LongObjectMap<Write> worldPending = pending.get(location.getWorld());
+        if (worldPending == null) return null;
+        Write write = worldPending.get(BlockKeyMap.key(location.getBlockX(), location.getBlockY(), location.getBlockZ()));
+        return (write == null) ? null : write.block;
+    }
+
+    public static boolean isEmpty() {
+        for (ArrayDeque<Write> queue : queues)
+            if (! queue.isEmpty()) return false;
+        return true;
+    }
+
+    // places everything that's left, used when the plugin is disabled
+    public static void flush() {
+        for (ArrayDeque<Write> queue : queues)
+            while (! queue.isEmpty())
+                place(queue.poll());
+        if (taskId != -1) {
+            Utils.cancelTask(taskId);
+            taskId = -1;
+        }
+        blocksUsed = 0;
+        nanosUsed = 0;
+    }
+
+    private static void run() {
+        long start = System.nanoTime();
+        long stopTime = start + (Config.getBlockBudgetMillis() * 1000000L) - nanosUsed;
+        int blocksLeft = Config.getBlockBudgetBlocks() - blocksUsed;
+        try {
+            for (ArrayDeque<Write> queue : queues) {
+                while (! queue.isEmpty()) {
+                    if ((blocksLeft <= 0) || (System.nanoTime() >= stopTime)) return;
+                    if (place(queue.poll())) {
+                        blocksLeft--;
+                        blocksUsed++;
+                    }
+                }
+            }
+        } finally {
+            nanosUsed += System.nanoTime() - start;
+            // the task gives the budget back next tick and carries on with what's left
+            schedule();
+        }
+    }
+
+    private static void schedule() {
+        if (taskId != -1) return;
+        taskId = Utils.fireDelayed(new Runnable() {
+            @Override
+            public void run() {
+                taskId = -1;
+                blocksUsed = 0;
+                nanosUsed = 0;
+                if (! isEmpty()) BlockQueue.run();
+            }
+        }, 50);
+    }
+
+    // returns true if a block was actually placed
+    private static boolean place(Write write) {
+        if (write.superseded) return false;
+        LongObjectMap<Write> worldPending = pending.get(write.world);
+        worldPending.remove(write.key);
+        if (worldPending.isEmpty()) pending.remove(write.world);
+        try {
+            write.block.build(new Location(write.world, write.x, write.y, write.z));
+        } catch (Throwable t) {
+            Utils.warning("unable to place block at %s,%s,%s: %s", write.x, write.y, write.z, t.getMessage());
+        }
+        write.job.written();
+        return true;
+    }
+
+    public interface Callback {
+        // called on the main thread after some blocks of the job are placed
+        void onProgress(int done, int total);
+        // called on the main thread once all the blocks of the job are placed or replaced
+        void onComplete();
+    }
+
+    /**
+     * A set of blocks to place.
+     */
+    public static final class Job {
+
+        private List<Write> writes = new ArrayList<Write>();
+        private final Callback callback;
+        private int total = 0;
+        private int done = 0;
+
+        public Job(Callback callback) {
+            this.callback = callback;
+        }
+
+        public Job add(Location location, BuildableBlock block) {
+            if (writes == null)
+                throw new IllegalStateException("job already queued");
+            writes.add(new Write(this, location, block));
+            total++;
+            return this;
+        }
+
+        public boolean isComplete() {
+            return (writes == null) && (done == total);
+        }
+
+        private void written() {
+            done++;
+            if (callback != null)
+                callback.onProgress(done, total);
+            if (done == total) complete();
+        }
+
+        private void complete() {
+            if (callback != null)
+                callback.onComplete();
+        }
+
+    }
+
+    private static final class Write {
+        final Job job;
+        final World world;
+        final int x, y, z;
+        final long key;
+        final BuildableBlock block;
+        boolean superseded = false;
+
+        Write(Job job, Location location, BuildableBlock block) {
+            this.job = job;
+            world = location.getWorld();
+            x = location.getBlockX();
+            y = location.getBlockY();
+            z = location.getBlockZ();
+            key = BlockKeyMap.key(x, y, z);
+            this.block = block;
+        }
+
+        void supersede() {
+            superseded = true;
+            job.written();
+        }
+    }
+
+}
@@ -50,6 +50,12 @@ public final class BuildableBlock {
         rotate(direction);
     }
 
+    public BuildableBlock(int type, byte data, boolean physics) {
+        this.type = type;
+        this.data = data;
+        this.physics = physics;
+    }
+
     public BuildableBlock(Location location) {
         extract(location);
     }
@@ -183,10 +189,16 @@ public final class BuildableBlock {
 
     public boolean matches(Block block) {
         Utils.debug("match %s to %s", this, Utils.block(block));
+        return matches(block.getTypeId(), block.getData());
+    }
 
-        if (block.getTypeId() != type) {
+    // doesn't touch the world so it's safe to use with chunk snapshots
+    public boolean matches(int otherType, byte otherData) {
+        Material otherMaterial = Material.getMaterial(otherType);
+        if (otherType != type) {
+            if (otherMaterial == null) return false;
             // handle liquids special
-            switch (block.getType()) {
+            switch (otherMaterial) {
                 case WATER:
                 case STATIONARY_WATER:
                     if ((type == Material.WATER.getId()) ||
@@ -204,13 +216,13 @@ public final class BuildableBlock {
         // can't simply compare data values because signs can have multiple values indicating
         // the same facing direction!
         MaterialData myMd = Material.getMaterial(type).getNewData(data);
-        MaterialData otherMd = block.getType().getNewData(block.getData());
+        MaterialData otherMd = otherMaterial.getNewData(otherData);
         if ((myMd instanceof Directional) &&
             (otherMd instanceof Directional)) {
             return ((Directional)myMd).getFacing() == ((Directional)otherMd).getFacing();
             // this is broken if there are other aspects to compare
         }
-        if (block.getData() != data) return false;
+        if (otherData != data) return false;
         // we don't care about matching lines on a sign
         return true;
     }
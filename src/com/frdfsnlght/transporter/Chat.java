@@ -101,8 +101,8 @@ public final class Chat {
         Location loc = player.getLocation();
         RemoteGateImpl destGate;
         Server destServer;
-        for (LocalGateImpl gate : Gates.getLocalGates()) {
-            if (gate.isOpen() && gate.canSendChat(message, format) && gate.isInChatSendProximity(loc)) {
+        for (LocalGateImpl gate : ChatIndex.getSendGates(loc)) {
+            if (gate.isOpen() && gate.canSendChat(message, format)) {
                 try {
                     GateImpl dg = gate.getDestinationGate();
                     if (! (dg instanceof RemoteGateImpl)) continue;
@@ -134,15 +134,14 @@ public final class Chat {
         if ((toGates == null) && fromServer.canReceiveChat(message))
             Collections.addAll(playersToReceive, players);
         else if ((toGates != null) && (! toGates.isEmpty())) {
+            ChatIndex.PlayerGrid grid = null;
             for (String gateName : toGates) {
                 GateImpl g = Gates.get(gateName);
                 if ((g == null) || (! (g instanceof LocalGateImpl))) continue;
                 LocalGateImpl gate = (LocalGateImpl)g;
                 if (! gate.canReceiveChat(message)) continue;
-                for (Player p : players) {
-                    if (gate.isInChatReceiveProximity(p.getLocation()))
-                        playersToReceive.add(p);
-                }
+                if (grid == null) grid = new ChatIndex.PlayerGrid(players);
+                grid.addPlayersNear(gate, playersToReceive);
             }
         } else {
             Utils.debug("chat message ignored");
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+/**
+ * Spatial index of the local gates that send chat, used to find the gates
+ * within chat distance of a player without checking every gate.
+ *
+ * Each world is divided into square cells and a gate is listed in every
+ * cell its send distance reaches. Like the GateMap, the index is published
+ * as an immutable snapshot so it can be read from any thread.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class ChatIndex {
+
+    // cells are 256 blocks on a side
+    private static final int CELL_SHIFT = 8;
+
+    // gates reaching more cells than this are checked on every query
+    private static final int MAX_CELLS = 1024;
+
+    private static volatile Map<World,WorldIndex> worlds = Collections.emptyMap();
+
+    // how each gate is currently indexed, only used by writers
+    private static final Map<LocalGateImpl,Entry> entries = new HashMap<LocalGateImpl,Entry>();
+
+    // changes made during a batch, published when it ends
+    private static Map<World,WorldIndex> batch = null;
+    private static int batchDepth = 0;
+
+    // Adds, moves or removes the gate to match its current settings. Only
+    // registered gates that send chat are indexed.
+    public static synchronized void update(LocalGateImpl gate) {
+        Entry oldEntry = entries.remove(gate);
+        Entry newEntry = null;
+        if (gate.getSendChat() && (gate.getCenter() != null) && (Gates.get(gate.getFullName()) == gate)) {
+            newEntry = new Entry(gate);
+            entries.put(gate, newEntry);
+        }
+        if ((oldEntry == null) && (newEntry == null)) return;
+        Map<World,WorldIndex> newWorlds = edit();
+        if (oldEntry != null)
+            put(newWorlds, oldEntry.world, get(newWorlds, oldEntry.world).minus(oldEntry));
+        if (newEntry != null)
+            put(newWorlds, newEntry.world, get(newWorlds, newEntry.world).plus(newEntry));
+        publish(newWorlds);
+    }
+
+    public static synchronized void remove(LocalGateImpl gate) {
+        Entry entry = entries.remove(gate);
+        if (entry == null) return;
+        Map<World,WorldIndex> newWorlds = edit();
+        put(newWorlds, entry.world, get(newWorlds, entry.world).minus(entry));
+        publish(newWorlds);
+    }
+
+    // Collects changes until endBatch so loading many gates publishes once.
+    public static synchronized void beginBatch() {
+        if (batchDepth++ == 0)
+            batch = new HashMap<World,WorldIndex>(worlds);
+    }
+
+    public static synchronized void endBatch() {
+        if ((batchDepth == 0) || (--batchDepth > 0)) return;
+        Map<World,WorldIndex> newWorlds = batch;
+        batch = null;
+        publish(newWorlds);
+    }
+
+    // returns the gates that send chat and whose send distance reaches the location
+    public static List<LocalGateImpl> getSendGates(Location location) {
+        List<LocalGateImpl> gates = new ArrayList<LocalGateImpl>();
+        WorldIndex index = worlds.get(location.getWorld());
+        if (index == null) return gates;
+        double x = location.getX();
+        double y = location.getY();
+        double z = location.getZ();
+        Entry[] cell = index.cells.get(cellKey(location.getBlockX() >> CELL_SHIFT, location.getBlockZ() >> CELL_SHIFT));
+        if (cell != null)
+            for (Entry entry : cell)
+                if (entry.reaches(x, y, z)) gates.add(entry.gate);
+        for (Entry entry : index.wideEntries)
+            if (entry.reaches(x, y, z)) gates.add(entry.gate);
+        return gates;
+    }
+
+    // the maps to change, the batch or a copy of the published ones
+    private static Map<World,WorldIndex> edit() {
+        return (batch != null) ? batch : new HashMap<World,WorldIndex>(worlds);
+    }
+
+    private static WorldIndex get(Map<World,WorldIndex> worlds, World world) {
+        WorldIndex index = worlds.get(world);
+        return (index == null) ? WorldIndex.EMPTY : index;
+    }
+
+    private static void put(Map<World,WorldIndex> worlds, World world, WorldIndex index) {
+        if (index.isEmpty())
+            worlds.remove(world);
+        else
+            worlds.put(world, index);
+    }
+
+    private static void publish(Map<World,WorldIndex> newWorlds) {
+        if (newWorlds == batch) return;
+        worlds = Collections.unmodifiableMap(newWorlds);
+    }
+
+    private static long cellKey(int cx, int cz) {
+        return GateMap.chunkKey(cx, cz);
+    }
+
+    private static final class Entry {
+        final LocalGateImpl gate;
+        final World world;
+        final double x, y, z;
+        final int distance;
+        final int minX, minZ, maxX, maxZ;
+
+        Entry(LocalGateImpl gate) {
+            this.gate = gate;
+            world = gate.getWorld();
+            Vector center = gate.getCenter();
+            x = center.getX();
+            y = center.getY();
+            z = center.getZ();
+            distance = gate.getSendChatDistance();
+            minX = ((int)Math.floor(x) - distance) >> CELL_SHIFT;
+            minZ = ((int)Math.floor(z) - distance) >> CELL_SHIFT;
+            maxX = ((int)Math.floor(x) + distance) >> CELL_SHIFT;
+            maxZ = ((int)Math.floor(z) + distance) >> CELL_SHIFT;
+        }
+
+        // unlimited and very large distances aren't put in cells
+        boolean isWide() {
+            return (distance <= 0) ||
+                   (((long)(maxX - minX + 1) * (maxZ - minZ + 1)) > MAX_CELLS);
+        }
+
+        boolean reaches(double x, double y, double z) {
+            if (distance <= 0) return true;
+            double dx = x - this.x;
+            double dy = y - this.y;
+            double dz = z - this.z;
+            return ((dx * dx) + (dy * dy) + (dz * dz)) <= ((double)distance * distance);
+        }
+    }
+
+    // Never changed once made, plus and minus return a new index that shares
+    // the unchanged cells with this one.
+    private static final class WorldIndex {
+
+        static final WorldIndex EMPTY = new WorldIndex(PersistentMap.<Long,Entry[]>empty(), new Entry[0]);
+
+        final PersistentMap<Long,Entry[]> cells;
+        final Entry[] wideEntries;
+
+        private WorldIndex(PersistentMap<Long,Entry[]> cells, Entry[] wideEntries) {
+            this.cells = cells;
+            this.wideEntries = wideEntries;
+        }
+
+        boolean isEmpty() {
+            return cells.isEmpty() && (wideEntries.length == 0);
+        }
+
+        WorldIndex plus(Entry entry) {
+            if (entry.isWide())
+                return new WorldIndex(cells, append(wideEntries, entry));
+            PersistentMap<Long,Entry[]> newCells = cells;
+            for (int cx = entry.minX; cx <= entry.maxX; cx++)
+                for (int cz = entry.minZ; cz <= entry.maxZ; cz++) {
+                    long key = cellKey(cx, cz);
+                    newCells = newCells.plus(key, append(newCells.get(key), entry));
+                }
+            return new WorldIndex(newCells, wideEntries);
+        }
+
+        WorldIndex minus(Entry entry) {
+            if (entry.isWide())
+                return new WorldIndex(cells, without(wideEntries, entry));
+            PersistentMap<Long,Entry[]> newCells = cells;
+            for (int cx = entry.minX; cx <= entry.maxX; cx++)
+                for (int cz = entry.minZ; cz <= entry.maxZ; cz++) {
+                    long key = cellKey(cx, cz);
+                    Entry[] cell = newCells.get(key);
+                    if (cell == null) continue;
+                    cell = without(cell, entry);
+                    newCells = (cell.length == 0) ? newCells.minus(key) : newCells.plus(key, cell);
+                }
+            return new WorldIndex(newCells, wideEntries);
+        }
+
+        private static Entry[] append(Entry[] entries, Entry entry) {
+            if (entries == null) return new Entry[] { entry };
+            Entry[] newEntries = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            newEntries[entries.length] = entry;
+            return newEntries;
+        }
+
+        private static Entry[] without(Entry[] entries, Entry entry) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i] != entry) continue;
+                Entry[] newEntries = new Entry[entries.length - 1];
+                System.arraycopy(entries, 0, newEntries, 0, i);
+                System.arraycopy(entries, i + 1, newEntries, i, newEntries.length - i);
+                return newEntries;
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Online players bucketed by world and cell, built once per received
+     * chat message so each target gate only checks the players near it.
+     */
+    public static final class PlayerGrid {
+
+        private final Map<World,LongObjectMap<List<PlayerPosition>>> worlds = new HashMap<World,LongObjectMap<List<PlayerPosition>>>();
+        private final Map<World,List<PlayerPosition>> worldPlayers = new HashMap<World,List<PlayerPosition>>();
+
+        public PlayerGrid(Player[] players) {
+            for (Player player : players) {
+                PlayerPosition pos = new PlayerPosition(player);
+                List<PlayerPosition> all = worldPlayers.get(pos.world);
+                if (all == null) {
+                    all = new ArrayList<PlayerPosition>();
+                    worldPlayers.put(pos.world, all);
+                    worlds.put(pos.world, new LongObjectMap<List<PlayerPosition>>());
+                }
+                all.add(pos);
+                LongObjectMap<List<PlayerPosition>> cells = worlds.get(pos.world);
+                long key = cellKey(pos.blockX >> CELL_SHIFT, pos.blockZ >> CELL_SHIFT);
+                List<PlayerPosition> cell = cells.get(key);
+                if (cell == null) {
+                    cell = new ArrayList<PlayerPosition>(2);
+                    cells.put(key, cell);
+                }
+                cell.add(pos);
+            }
+        }
+
+        // adds the players within the gate's receive distance
+        public void addPlayersNear(LocalGateImpl gate, Collection<Player> out) {
+            if (! gate.getReceiveChat()) return;
+            List<PlayerPosition> all = worldPlayers.get(gate.getWorld());
+            if (all == null) return;
+            int distance = gate.getReceiveChatDistance();
+            if (distance <= 0) {
+                for (PlayerPosition pos : all)
+                    out.add(pos.player);
+                return;
+            }
+            Vector center = gate.getCenter();
+            double x = center.getX();
+            double y = center.getY();
+            double z = center.getZ();
+            double limit = (double)distance * distance;
+            int minX = ((int)Math.floor(x) - distance) >> CELL_SHIFT;
+            int minZ = ((int)Math.floor(z) - distance) >> CELL_SHIFT;
+            int maxX = ((int)Math.floor(x) + distance) >> CELL_SHIFT;
+            int maxZ = ((int)Math.floor(z) + distance) >> CELL_SHIFT;
+
+            // fewer players than cells to probe, just check them all
+            if (((long)(maxX - minX + 1) * (maxZ - minZ + 1)) > all.size()) {
+                for (PlayerPosition pos : all)
+                    if (pos.distanceSquared(x, y, z) <= limit) out.add(pos.player);
+                return;
+            }
+            LongObjectMap<List<PlayerPosition>> cells = worlds.get(gate.getWorld());
+            for (int cx = minX; cx <= maxX; cx++)
+                for (int cz = minZ; cz <= maxZ; cz++) {
+                    List<PlayerPosition> cell = cells.get(cellKey(cx, cz));
+                    if (cell == null) continue;
+                    for (PlayerPosition pos : cell)
+                        if (pos.distanceSquared(x, y, z) <= limit) out.add(pos.player);
+                }
+        }
+
+    }
+
+    private static final class PlayerPosition {
+        final Player player;
+        final World world;
+        final double x, y, z;
+        final int blockX, blockZ;
+
+        PlayerPosition(Player player) {
+            this.player = player;
+            Location loc = player.getLocation();
+            world = loc.getWorld();
+            x = loc.getX();
+            y = loc.getY();
+            z = loc.getZ();
+            blockX = loc.getBlockX();
+            blockZ = loc.getBlockZ();
+        }
+
+        double distanceSquared(double x, double y, double z) {
+            double dx = x - this.x;
+            double dy = y - this.y;
+            double dz = z - this.z;
+            return (dx * dx) + (dy * dy) + (dz * dz);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import org.bukkit.World;
+
+/**
+ * Loads chunks ahead of when they're needed, a couple per tick.
+ *
+ * Bukkit can only load chunks on the main thread, so instead of one long
+ * stall when something arrives in a cold area the loads are spread over
+ * the ticks before it gets there. Chunks that are already loaded cost
+ * nothing.
+ *
+ * All methods must be called on the main thread.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class ChunkWarmer {
+
+    // most chunks actually loaded per tick
+    private static final int CHUNKS_PER_TICK = 2;
+
+    private static final ArrayDeque<Job> jobs = new ArrayDeque<Job>();
+    private static int taskId = -1;
+
+    // Loads the chunks, which are keyed like GateMap.chunkKey, and calls
+    // onReady once they're loaded or the deadline has passed.
+    public static Job warm(World world, long[] chunkKeys, long deadline, Runnable onReady) {
+        Job job = new Job(world, chunkKeys, System.currentTimeMillis() + deadline, onReady);
+        jobs.add(job);
+        schedule();
+        return job;
+    }
+
+    private static void schedule() {
+        if (taskId != -1) return;
+        taskId = Utils.fireDelayed(new Runnable() {
+            @Override
+            public void run() {
+                taskId = -1;
+                ChunkWarmer.run();
+            }
+        }, 50);
+        if (taskId == -1) {
+            // not running, so just do everything now
+            while (! jobs.isEmpty())
+                jobs.poll().finish();
+        }
+    }
+
+    private static void run() {
+        long now = System.currentTimeMillis();
+        int loadsLeft = CHUNKS_PER_TICK;
+        for (Iterator<Job> i = jobs.iterator(); i.hasNext(); ) {
+            Job job = i.next();
+            if (job.done) {
+                i.remove();
+                continue;
+            }
+            if (job.deadline <= now) {
+                Utils.debug("chunk warming in '%s' passed its deadline", job.world.getName());
+                i.remove();
+                job.ready();
+                continue;
+            }
+            if (loadsLeft > 0) {
+                loadsLeft -= job.load(loadsLeft);
+                if (job.pos == job.chunkKeys.length) {
+                    i.remove();
+                    job.ready();
+                }
+            }
+        }
+        if (! jobs.isEmpty())
+            schedule();
+    }
+
+    /**
+     * A set of chunks to load.
+     */
+    public static final class Job {
+
+        private final World world;
+        private final long[] chunkKeys;
+        private final long deadline;
+        private final Runnable onReady;
+        private int pos = 0;
+        private boolean done = false;
+
+        private Job(World world, long[] chunkKeys, long deadline, Runnable onReady) {
+            this.world = world;
+            this.chunkKeys = chunkKeys;
+            this.deadline = deadline;
+            this.onReady = onReady;
+        }
+
+        // returns the number of chunks actually loaded
+        private int load(int max) {
+            int loaded = 0;
+            while ((pos < chunkKeys.length) && (loaded < max)) {
+                long key = chunkKeys[pos++];
+                int cx = (int)(key >> 32);
+                int cz = (int)key;
+                if (world.isChunkLoaded(cx, cz)) continue;
+                world.loadChunk(cx, cz);
+                loaded++;
+            }
+            return loaded;
+        }
+
+        // loads whatever is left right now
+        public void finish() {
+            if (done) return;
+            load(Integer.MAX_VALUE);
+            ready();
+        }
+
+        // stops loading, the callback won't be called
+        public void cancel() {
+            done = true;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        private void ready() {
+            if (done) return;
+            done = true;
+            if (onReady != null)
+                try {
+                    onReady.run();
+                } catch (Throwable t) {
+                    Utils.severe(t, "chunk warming callback failed:");
+                }
+        }
+
+    }
+
+}
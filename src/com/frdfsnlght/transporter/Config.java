@@ -19,8 +19,10 @@ import com.frdfsnlght.transporter.api.TypeMap;
 import com.frdfsnlght.transporter.net.Network;
 import java.io.File;
 import java.net.Proxy;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -35,6 +37,9 @@ public final class Config {
     private static final Options options;
     private static TypeMap config = null;
 
+    // what everyone reads, so reads don't have to walk config
+    private static volatile Snapshot snapshot = new Snapshot(null);
+
     static {
         OPTIONS.add("debug");
         OPTIONS.add("deleteDebugFile");
@@ -77,11 +82,18 @@ public final class Config {
         OPTIONS.add("checkVersion");
         OPTIONS.add("updateMetrics");
         OPTIONS.add("resendLostPlayers");
+        OPTIONS.add("blockBudgetMillis");
+        OPTIONS.add("blockBudgetBlocks");
+        OPTIONS.add("useGateLog");
+        OPTIONS.add("usePreReservations");
+        OPTIONS.add("preReservationDistance");
 
         options = new Options(Config.class, OPTIONS, "trp", new OptionsListener() {
             @Override
             public void onOptionSet(Context ctx, String name, String value) {
                 ctx.sendLog("global option '%s' set to '%s'", name, value);
+                if (name.equals("useDynmap") || name.equals("dynmapMarkerSetLabel") || name.equals("exportedGatesFile"))
+                    Markers.update();
             }
             @Override
             public String getOptionPermission(Context ctx, String name) {
@@ -129,6 +141,7 @@ public final class Config {
         */
 
         config.remove("global.debugURL");
+        refresh();
 
         if (version < CONFIG_VERSION) {
             // do conversion here
@@ -166,19 +179,19 @@ public final class Config {
     }
 
     public static String getStringDirect(String path) {
-        return config.getString(path, null);
+        return snapshot.getString(path, null);
     }
 
     public static String getStringDirect(String path, String def) {
-        return config.getString(path, def);
+        return snapshot.getString(path, def);
     }
 
     public static int getIntDirect(String path, int def) {
-        return config.getInt(path, def);
+        return snapshot.getInt(path, def);
     }
 
     public static boolean getBooleanDirect(String path, boolean def) {
-        return config.getBoolean(path, def);
+        return snapshot.getBoolean(path, def);
     }
 
     public static List<String> getStringList(String path) {
@@ -199,6 +212,17 @@ public final class Config {
             config.remove(path);
         else
             config.set(path, v);
+        refresh();
+    }
+
+    private static void set(String path, Object v) {
+        config.set(path, v);
+        refresh();
+    }
+
+    // must be called after every change to config
+    private static synchronized void refresh() {
+        snapshot = new Snapshot(config);
     }
 
 
@@ -206,107 +230,107 @@ public final class Config {
     /* Begin options */
 
     public static boolean getDebug() {
-        return config.getBoolean("global.debug", false);
+        return snapshot.debug;
     }
 
     public static void setDebug(boolean b) {
-        config.set("global.debug", b);
+        set("global.debug", b);
     }
 
     public static boolean getDeleteDebugFile() {
-        return config.getBoolean("global.deleteDebugFile", true);
+        return snapshot.getBoolean("global.deleteDebugFile", true);
     }
 
     public static void setDeleteDebugFile(boolean b) {
-        config.set("global.deleteDebugFile", b);
+        set("global.deleteDebugFile", b);
     }
 
     public static boolean getAllowBuild() {
-        return config.getBoolean("global.allowBuild", true);
+        return snapshot.getBoolean("global.allowBuild", true);
     }
 
     public static void setAllowBuild(boolean b) {
-        config.set("global.allowBuild", b);
+        set("global.allowBuild", b);
     }
 
     public static boolean getAllowLinkLocal() {
-        return config.getBoolean("global.allowLinkLocal", true);
+        return snapshot.getBoolean("global.allowLinkLocal", true);
     }
 
     public static void setAllowLinkLocal(boolean b) {
-        config.set("global.allowLinkLocal", b);
+        set("global.allowLinkLocal", b);
     }
 
     public static boolean getAllowLinkWorld() {
-        return config.getBoolean("global.allowLinkWorld", true);
+        return snapshot.getBoolean("global.allowLinkWorld", true);
     }
 
     public static void setAllowLinkWorld(boolean b) {
-        config.set("global.allowLinkWorld", b);
+        set("global.allowLinkWorld", b);
     }
 
     public static boolean getAllowLinkServer() {
-        return config.getBoolean("global.allowLinkServer", true);
+        return snapshot.getBoolean("global.allowLinkServer", true);
     }
 
     public static void setAllowLinkServer(boolean b) {
-        config.set("global.allowLinkServer", b);
+        set("global.allowLinkServer", b);
     }
 
     public static boolean getAllowSignCreation() {
-        return config.getBoolean("global.allowSignCreation", true);
+        return snapshot.getBoolean("global.allowSignCreation", true);
     }
 
     public static void setAllowSignCreation(boolean b) {
-        config.set("global.allowSignCreation", b);
+        set("global.allowSignCreation", b);
     }
 
     public static boolean getAutoAddWorlds() {
-        return config.getBoolean("global.autoAddWorlds", true);
+        return snapshot.getBoolean("global.autoAddWorlds", true);
     }
 
     public static void setAutoAddWorlds(boolean b) {
-        config.set("global.autoAddWorlds", b);
+        set("global.autoAddWorlds", b);
     }
 
     public static boolean getAutoLoadWorlds() {
-        return config.getBoolean("global.autoLoadWorlds", true);
+        return snapshot.getBoolean("global.autoLoadWorlds", true);
     }
 
     public static void setAutoLoadWorlds(boolean b) {
-        config.set("global.autoLoadWorlds", b);
+        set("global.autoLoadWorlds", b);
     }
 
     public static int getGateLockExpiration() {
-        return config.getInt("global.gateLockExpiration", 2000);
+        return snapshot.gateLockExpiration;
     }
 
     public static void setGateLockExpiration(int i) {
         if (i < 500)
             throw new IllegalArgumentException("gateLockExpiration must be at least 500");
-        config.set("global.gateLockExpiration", i);
+        set("global.gateLockExpiration", i);
     }
 
     public static int getArrivalWindow() {
-        return config.getInt("global.arrivalWindow", 20000);
+        return snapshot.arrivalWindow;
     }
 
     public static void setArrivalWindow(int i) {
         if (i < 1000)
             throw new IllegalArgumentException("arrivalWindow must be at least 1000");
-        config.set("global.arrivalWindow", i);
+        set("global.arrivalWindow", i);
     }
 
     public static boolean getUseGatePermissions() {
-        return config.getBoolean("global.useGatePermissions", false);
+        return snapshot.useGatePermissions;
     }
 
     public static void setUseGatePermissions(boolean b) {
-        config.set("global.useGatePermissions", b);
+        set("global.useGatePermissions", b);
     }
 
     public static String getServerChatFormat() {
-        return config.getString("global.serverChatFormat", "<%player%/%world%@%server%> %message%");
+        return snapshot.serverChatFormat;
     }
 
     public static void setServerChatFormat(String s) {
@@ -318,7 +342,7 @@ public final class Config {
     }
 
     public static String getServerJoinFormat() {
-        return config.getString("global.serverJoinFormat", "%YELLOW%%player%/%world%@%server% joined the game.");
+        return snapshot.getString("global.serverJoinFormat", "%YELLOW%%player%/%world%@%server% joined the game.");
     }
 
     public static void setServerJoinFormat(String s) {
@@ -330,7 +354,7 @@ public final class Config {
     }
 
     public static String getServerQuitFormat() {
-        return config.getString("global.serverQuitFormat", "%YELLOW%%player%/%world%@%server% left the game.");
+        return snapshot.getString("global.serverQuitFormat", "%YELLOW%%player%/%world%@%server% left the game.");
     }
 
     public static void setServerQuitFormat(String s) {
@@ -342,7 +366,7 @@ public final class Config {
     }
 
     public static String getServerKickFormat() {
-        return config.getString("global.serverKickFormat", "%YELLOW%%player%/%world%@%server% was kicked.");
+        return snapshot.getString("global.serverKickFormat", "%YELLOW%%player%/%world%@%server% was kicked.");
     }
 
     public static void setServerKickFormat(String s) {
@@ -354,7 +378,7 @@ public final class Config {
     }
 
     public static String getServerDeathFormat() {
-        return config.getString("global.serverDeathFormat", "%YELLOW%%player%/%world%@%server% died.");
+        return snapshot.getString("global.serverDeathFormat", "%YELLOW%%player%/%world%@%server% died.");
     }
 
     public static void setServerDeathFormat(String s) {
@@ -366,7 +390,7 @@ public final class Config {
     }
 
     public static String getConsolePMFormat() {
-        return config.getString("global.consolePMFormat", "[console] %GREEN%%message%");
+        return snapshot.getString("global.consolePMFormat", "[console] %GREEN%%message%");
     }
 
     public static void setConsolePMFormat(String s) {
@@ -378,7 +402,7 @@ public final class Config {
     }
 
     public static String getLocalPMFormat() {
-        return config.getString("global.localPMFormat", "[%fromPlayer%] %GREEN%%message%");
+        return snapshot.getString("global.localPMFormat", "[%fromPlayer%] %GREEN%%message%");
     }
 
     public static void setLocalPMFormat(String s) {
@@ -390,7 +414,7 @@ public final class Config {
     }
 
     public static String getWorldPMFormat() {
-        return config.getString("global.worldPMFormat", "[%fromPlayer%/%fromWorld%] %GREEN%%message%");
+        return snapshot.getString("global.worldPMFormat", "[%fromPlayer%/%fromWorld%] %GREEN%%message%");
     }
 
     public static void setWorldPMFormat(String s) {
@@ -402,7 +426,7 @@ public final class Config {
     }
 
     public static String getServerPMFormat() {
-        return config.getString("global.serverPMFormat", "[%fromPlayer%/%fromWorld%@%fromServer%] %GREEN%%message%");
+        return snapshot.getString("global.serverPMFormat", "[%fromPlayer%/%fromWorld%@%fromServer%] %GREEN%%message%");
     }
 
     public static void setServerPMFormat(String s) {
@@ -415,71 +439,71 @@ public final class Config {
 
 
     public static boolean getUseVaultEconomy() {
-        return config.getBoolean("global.useVaultEconomy", false);
+        return snapshot.getBoolean("global.useVaultEconomy", false);
     }
 
     public static void setUseVaultEconomy(boolean b) {
-        config.set("global.useVaultEconomy", b);
+        set("global.useVaultEconomy", b);
     }
 
     public static boolean getUseRegisterEconomy() {
-        return config.getBoolean("global.useRegisterEconomy", false);
+        return snapshot.getBoolean("global.useRegisterEconomy", false);
     }
 
     public static void setUseRegisterEconomy(boolean b) {
-        config.set("global.useRegisterEconomy", b);
+        set("global.useRegisterEconomy", b);
     }
 
     public static boolean getUseDynmap() {
-        return config.getBoolean("global.useDynmap", false);
+        return snapshot.getBoolean("global.useDynmap", false);
     }
 
     public static void setUseDynmap(boolean b) {
-        config.set("global.useDynmap", b);
+        set("global.useDynmap", b);
     }
 
     public static boolean getUseVaultPermissions() {
-        return config.getBoolean("global.useVaultPermissions", false);
+        return snapshot.getBoolean("global.useVaultPermissions", false);
     }
 
     public static void setUseVaultPermissions(boolean b) {
-        config.set("global.useVaultPermissions", b);
+        set("global.useVaultPermissions", b);
     }
 
     public static boolean getUsePermissions() {
-        return config.getBoolean("global.usePermissions", false);
+        return snapshot.getBoolean("global.usePermissions", false);
     }
 
     public static void setUsePermissions(boolean b) {
-        config.set("global.usePermissions", b);
+        set("global.usePermissions", b);
     }
 
     public static boolean getUsePermissionsEx() {
-        return config.getBoolean("global.usePermissionsEx", false);
+        return snapshot.getBoolean("global.usePermissionsEx", false);
     }
 
     public static void setUsePermissionsEx(boolean b) {
-        config.set("global.usePermissionsEx", b);
+        set("global.usePermissionsEx", b);
     }
 
     public static boolean getUseVaultChat() {
-        return config.getBoolean("global.useVaultChat", false);
+        return snapshot.getBoolean("global.useVaultChat", false);
     }
 
     public static void setUseVaultChat(boolean b) {
-        config.set("global.useVaultChat", b);
+        set("global.useVaultChat", b);
     }
 
     public static boolean getUseTabAPI() {
-        return config.getBoolean("global.useTabAPI", false);
+        return snapshot.getBoolean("global.useTabAPI", false);
     }
 
     public static void setUseTabAPI(boolean b) {
-        config.set("global.useTabAPI", b);
+        set("global.useTabAPI", b);
     }
 
     public static String getDynmapMarkerSetLabel() {
-        return config.getString("global.dynmapMarkerSetLabel", "Transporter Gates");
+        return snapshot.getString("global.dynmapMarkerSetLabel", "Transporter Gates");
     }
 
     public static void setDynmapMarkerSetLabel(String s) {
@@ -488,7 +512,7 @@ public final class Config {
     }
 
     public static String getExportedGatesFile() {
-        return config.getString("global.exportedGatesFile", null);
+        return snapshot.getString("global.exportedGatesFile", null);
     }
 
     public static void setExportedGatesFile(String s) {
@@ -497,7 +521,7 @@ public final class Config {
     }
 
     public static int getWorldLoadDelay() {
-        return config.getInt("global.worldLoadDelay", 5000);
+        return snapshot.getInt("global.worldLoadDelay", 5000);
     }
 
     public static void setWorldLoadDelay(int i) {
@@ -505,8 +529,54 @@ public final class Config {
         setPropertyDirect("global.worldLoadDelay", i);
     }
 
+    public static int getBlockBudgetMillis() {
+        return snapshot.blockBudgetMillis;
+    }
+
+    public static void setBlockBudgetMillis(int i) {
+        if (i < 1)
+            throw new IllegalArgumentException("blockBudgetMillis must be at least 1");
+        set("global.blockBudgetMillis", i);
+    }
+
+    public static int getBlockBudgetBlocks() {
+        return snapshot.blockBudgetBlocks;
+    }
+
+    public static void setBlockBudgetBlocks(int i) {
+        if (i < 1)
+            throw new IllegalArgumentException("blockBudgetBlocks must be at least 1");
+        set("global.blockBudgetBlocks", i);
+    }
+
+    public static boolean getUseGateLog() {
+        return snapshot.getBoolean("global.useGateLog", false);
+    }
+
+    public static void setUseGateLog(boolean b) {
+        set("global.useGateLog", b);
+    }
+
+    public static boolean getUsePreReservations() {
+        return snapshot.getBoolean("global.usePreReservations", false);
+    }
+
+    public static void setUsePreReservations(boolean b) {
+        set("global.usePreReservations", b);
+    }
+
+    public static int getPreReservationDistance() {
+        return snapshot.getInt("global.preReservationDistance", 4);
+    }
+
+    public static void setPreReservationDistance(int i) {
+        if ((i < 1) || (i > 15))
+            throw new IllegalArgumentException("preReservationDistance must be between 1 and 15");
+        set("global.preReservationDistance", i);
+    }
+
     public static boolean getShowGatesSavedMessage() {
-        return config.getBoolean("global.showGatesSavedMessages", true);
+        return snapshot.getBoolean("global.showGatesSavedMessages", true);
     }
 
     public static void setShowGatesSavedMessage(boolean b) {
@@ -514,7 +584,7 @@ public final class Config {
     }
 
     public static String getHttpProxyHost() {
-        return config.getString("global.httpProxy.host", null);
+        return snapshot.getString("global.httpProxy.host", null);
     }
 
     public static void setHttpProxyHost(String s) {
@@ -523,7 +593,7 @@ public final class Config {
     }
 
     public static String getHttpProxyType() {
-        return config.getString("global.httpProxy.type", "HTTP");
+        return snapshot.getString("global.httpProxy.type", "HTTP");
     }
 
     public static void setHttpProxyType(String s) {
@@ -539,17 +609,17 @@ public final class Config {
     }
 
     public static int getHttpProxyPort() {
-        return config.getInt("global.httpProxy.port", 80);
+        return snapshot.getInt("global.httpProxy.port", 80);
     }
 
     public static void setHttpProxyPort(int i) {
         if ((i < 1) || (i > 65535))
             throw new IllegalArgumentException("proxy port is invalid");
-        config.set("global.httpProxy.port", i);
+        set("global.httpProxy.port", i);
     }
 
     public static String getHttpProxyUser() {
-        return config.getString("global.httpProxy.user", null);
+        return snapshot.getString("global.httpProxy.user", null);
     }
 
     public static void setHttpProxyUser(String s) {
@@ -558,7 +628,7 @@ public final class Config {
     }
 
     public static String getHttpProxyPassword() {
-        return config.getString("global.httpProxy.password", null);
+        return snapshot.getString("global.httpProxy.password", null);
     }
 
     public static void setHttpProxyPassword(String s) {
@@ -567,7 +637,7 @@ public final class Config {
     }
 
     public static boolean getCheckVersion() {
-        return config.getBoolean("global.checkVersion", true);
+        return snapshot.getBoolean("global.checkVersion", true);
     }
 
     public static void setCheckVersion(boolean b) {
@@ -575,7 +645,7 @@ public final class Config {
     }
 
     public static boolean getUpdateMetrics() {
-        return config.getBoolean("global.updateMetrics", true);
+        return snapshot.getBoolean("global.updateMetrics", true);
     }
 
     public static void setUpdateMetrics(boolean b) {
@@ -583,7 +653,7 @@ public final class Config {
     }
 
     public static boolean getResendLostPlayers() {
-        return config.getBoolean("global.resendLostPlayers", false);
+        return snapshot.getBoolean("global.resendLostPlayers", false);
     }
 
     public static void setResendLostPlayers(boolean b) {
@@ -606,4 +676,68 @@ public final class Config {
 
     /* End options */
 
+    /**
+     * An immutable copy of the configuration with every setting keyed by
+     * its full path. The settings read most often are also kept in fields.
+     */
+    private static final class Snapshot {
+
+        private final Map<String,Object> values = new HashMap<String,Object>();
+
+        final boolean debug;
+        final int gateLockExpiration;
+        final int arrivalWindow;
+        final boolean useGatePermissions;
+        final int blockBudgetMillis;
+        final int blockBudgetBlocks;
+        final String serverChatFormat;
+
+        Snapshot(TypeMap config) {
+            if (config != null)
+                flatten(null, config);
+            debug = getBoolean("global.debug", false);
+            gateLockExpiration = getInt("global.gateLockExpiration", 2000);
+            arrivalWindow = getInt("global.arrivalWindow", 20000);
+            useGatePermissions = getBoolean("global.useGatePermissions", false);
+            blockBudgetMillis = getInt("global.blockBudgetMillis", 5);
+            blockBudgetBlocks = getInt("global.blockBudgetBlocks", 500);
+            serverChatFormat = getString("global.serverChatFormat", "<%player%/%world%@%server%> %message%");
+        }
+
+        private void flatten(String prefix, Map<String,Object> map) {
+            for (Map.Entry<String,Object> e : map.entrySet()) {
+                String path = (prefix == null) ? e.getKey() : (prefix + "." + e.getKey());
+                if (e.getValue() instanceof TypeMap)
+                    flatten(path, (TypeMap)e.getValue());
+                else
+                    values.put(path, e.getValue());
+            }
+        }
+
+        // these convert the same way TypeMap does
+
+        String getString(String path, String def) {
+            if (! values.containsKey(path)) return def;
+            Object o = values.get(path);
+            return (o == null) ? null : o.toString();
+        }
+
+        boolean getBoolean(String path, boolean def) {
+            Object o = values.get(path);
+            if (o == null) return def;
+            return Boolean.parseBoolean(o.toString());
+        }
+
+        int getInt(String path, int def) {
+            Object o = values.get(path);
+            if (o == null) return def;
+            try {
+                return (int)Long.parseLong(o.toString());
+            } catch (IllegalArgumentException e) {
+                return def;
+            }
+        }
+
+    }
+
 }
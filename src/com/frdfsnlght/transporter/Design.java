@@ -21,6 +21,8 @@ import com.frdfsnlght.transporter.api.TransporterException;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -123,18 +125,39 @@ public class Design {
     private List<Pattern> buildWorlds = null;
     private List<DesignBlock> blocks = null;
 
+    // number of blocks checked before a full match is tried
+    private static final int SENTINEL_COUNT = 4;
+
+    // indexes of a few matchable blocks spread across the design, used to
+    // reject matches cheaply
+    private int[] sentinels = null;
+
+    // the blocks rotated to face each direction
+    private Map<BlockFace,TransformedDesign.Template> templates = new EnumMap<BlockFace,TransformedDesign.Template>(BlockFace.class);
+
+    // results of matching world names against buildWorlds
+    private Map<String,Boolean> buildWorldCache = new HashMap<String,Boolean>();
+
     private int sizeX, sizeY, sizeZ;    // calculated
 
     @SuppressWarnings("unchecked")
     public Design(File file) throws DesignException, BlockException {
+        this(file, null);
+    }
+
+    public Design(File file, YAMLCache cache) throws DesignException, BlockException {
         if (! file.exists())
             throw new DesignException("%s not found", file.getAbsolutePath());
         if (! file.isFile())
             throw new DesignException("%s is not a file", file.getAbsolutePath());
         if (! file.canRead())
             throw new DesignException("unable to read %s", file.getAbsoluteFile());
-        TypeMap conf = new TypeMap(file);
-        conf.load();
+        TypeMap conf;
+        if (cache == null) {
+            conf = new TypeMap(file);
+            conf.load();
+        } else
+            conf = cache.load(file);
 
         name = conf.getString("name");
         attribution = conf.getString("attribution");
@@ -372,6 +395,43 @@ public class Design {
 //            throw new DesignException("must have at least one switch block because multiLink is true");
         if (spawnCount == 0)
             throw new DesignException("must have at least one spawn block");
+
+        for (BlockFace direction : new BlockFace[] { BlockFace.NORTH, BlockFace.EAST, BlockFace.SOUTH, BlockFace.WEST })
+            templates.put(direction, new TransformedDesign.Template(blocks, direction));
+        pickSentinels();
+    }
+
+    // Picks the matchable blocks furthest from the design's middle, solid
+    // blocks first since air matches too much of the world to reject anything.
+    private void pickSentinels() {
+        final double mx = sizeX / 2.0, my = sizeY / 2.0, mz = sizeZ / 2.0;
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (int i = 0; i < blocks.size(); i++) {
+            DesignBlockDetail detail = blocks.get(i).getDetail();
+            if (detail.isMatchable() && (! detail.isScreen()))
+                candidates.add(i);
+        }
+        Collections.sort(candidates, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                DesignBlock dbA = blocks.get(a), dbB = blocks.get(b);
+                boolean aAir = dbA.getDetail().getBuildBlock().getType() == 0;
+                boolean bAir = dbB.getDetail().getBuildBlock().getType() == 0;
+                if (aAir != bAir) return aAir ? 1 : -1;
+                return Double.compare(distance(dbB), distance(dbA));
+            }
+            private double distance(DesignBlock db) {
+                double dx = db.getX() - mx, dy = db.getY() - my, dz = db.getZ() - mz;
+                return (dx * dx) + (dy * dy) + (dz * dz);
+            }
+        });
+        sentinels = new int[Math.min(SENTINEL_COUNT, candidates.size())];
+        for (int i = 0; i < sentinels.length; i++)
+            sentinels[i] = candidates.get(i);
+    }
+
+    TransformedDesign.Template getTemplate(BlockFace direction) {
+        return templates.get(direction);
     }
 
     public void dump(Context ctx) {
@@ -671,7 +731,7 @@ public class Design {
         return countdownCancelFormat;
     }
 
-    private Collection<DesignBlock> getScreenBlocks() {
+    Collection<DesignBlock> getScreenBlocks() {
         Collection<DesignBlock> screens = new ArrayList<DesignBlock>();
         for (DesignBlock db : blocks)
             if (db.getDetail().isScreen())
@@ -708,6 +768,11 @@ public class Design {
     // Builds a gate at the specified location.
     // Location must include a yaw that indicates the gate's direction.
     public DesignMatch build(Location location, String playerName) throws DesignException {
+        return build(location, playerName, null);
+    }
+
+    // Same as above, but the callback is told when the blocks are placed.
+    public DesignMatch build(Location location, String playerName, BlockQueue.Callback callback) throws DesignException {
 
         // must be in a buildable world
         World world = location.getWorld();
@@ -760,108 +825,119 @@ public class Design {
         if (location.getBlockY() < 0)
             throw new DesignException("insertion point is too low to build");
 
-        TransformedDesign tDesign = new TransformedDesign(this, location, direction);
-
         // check blocks that will be replaced (can't build in bedrock)
-        while (tDesign.hasMoreBlocks()) {
-            GateBlock gb = tDesign.nextBlock();
-            if (! gb.getDetail().isBuildable()) continue;
-            if (gb.getLocation().getBlock().getType() == Material.BEDROCK)
-                throw new DesignException("unable to build in bedrock");
-        }
-        tDesign.reset();
+        if (templates.get(direction).hasBuildableType(world, location.getBlockX(), location.getBlockY(), location.getBlockZ(), Material.BEDROCK.getId()))
+            throw new DesignException("unable to build in bedrock");
+
+        TransformedDesign tDesign = new TransformedDesign(this, location, direction);
 
         // build it!
         List<SavedBlock> savedBlocks = new ArrayList<SavedBlock>();
+        BlockQueue.Job job = new BlockQueue.Job(callback);
         while (tDesign.hasMoreBlocks()) {
             GateBlock gb = tDesign.nextBlock();
             if (! gb.getDetail().isBuildable()) continue;
             savedBlocks.add(new SavedBlock(gb.getLocation()));
-            gb.getDetail().getBuildBlock().build(gb.getLocation());
+            job.add(gb.getLocation(), gb.getDetail().getBuildBlock());
         }
         Designs.setBuildUndo(playerName, savedBlocks);
+        BlockQueue.submit(BlockQueue.BUILD, job);
         return new DesignMatch(this, tDesign, world, direction);
     }
 
-    // Attempts to match the blocks around the given location with this design.
-    // The location should be the location of one of the design's screen.
-    public DesignMatch matchScreen(Location location) {
-        Utils.debug("checking design '%s'", name);
-
-        // must be in a buildable world
-        World world = location.getWorld();
+    public boolean isBuildableWorld(World world) {
         String worldName = world.getName();
-        boolean matched = false;
-        for (Pattern pattern : buildWorlds)
-            if (pattern.matcher(worldName).matches()) {
-                matched = true;
-                break;
-            }
-        if (! matched) return null;
-        Utils.debug("world is OK");
-
-        Block targetBlock = location.getBlock();
-        BlockFace direction = null;
-        TransformedDesign tDesign = null;
-        matched = false;
-
-        // iterate over each screen trying to find a match with what's around the targetBlock
-        for (DesignBlock screenBlock : getScreenBlocks()) {
-            location = targetBlock.getLocation();
-            direction = screenBlock.getDetail().getBuildBlock().matchTypeAndDirection(targetBlock);
-            if (direction == null) continue;
-
-            Utils.debug("screen %s,%s,%s", screenBlock.getX(), screenBlock.getY(), screenBlock.getZ());
-            Utils.debug("direction=%s", direction);
-
-            // adjust location to represent 0,0,0 of design blocks
-            switch (direction) {
-                case NORTH:
-                    translate(location, -screenBlock.getX(), -screenBlock.getY(), -screenBlock.getZ());
-//                    translate(location, screenBlock.getZ(), -screenBlock.getY(), -screenBlock.getX());
-                    break;
-                case EAST:
-                    translate(location, screenBlock.getZ(), -screenBlock.getY(), -screenBlock.getX());
-//                    translate(location, screenBlock.getX(), -screenBlock.getY(), screenBlock.getZ());
-                    break;
-                case SOUTH:
-                    translate(location, screenBlock.getX(), -screenBlock.getY(), screenBlock.getZ());
-//                    translate(location, -screenBlock.getZ(), -screenBlock.getY(), screenBlock.getX());
-                    break;
-                case WEST:
-                    translate(location, -screenBlock.getZ(), -screenBlock.getY(), screenBlock.getX());
-//                    translate(location, -screenBlock.getX(), -screenBlock.getY(), -screenBlock.getZ());
-                    break;
-                default:
-                    continue;
-            }
-            Utils.debug("matched a screen");
-            Utils.debug("direction=%s", direction);
-
-            tDesign = new TransformedDesign(this, location, direction);
-
-            // check the target blocks to make sure they match the design
-            matched = true;
-            while (tDesign.hasMoreBlocks()) {
-                GateBlock gb = tDesign.nextBlock();
-                if (gb.getDetail().isMatchable() &&
-                    (! gb.getDetail().getBuildBlock().matches(gb.getLocation()))) {
-                    matched = false;
+        Boolean matched = buildWorldCache.get(worldName);
+        if (matched == null) {
+            matched = false;
+            for (Pattern pattern : buildWorlds)
+                if (pattern.matcher(worldName).matches()) {
+                    matched = true;
                     break;
                 }
-            }
-            tDesign.reset();
-            if (matched) break;
-            Utils.debug("blocks don't match");
+            buildWorldCache.put(worldName, matched);
         }
+        return matched;
+    }
+
+    // Tries to match the design around the target block, taking the target
+    // to be the given screen block. The world isn't checked.
+    DesignMatch matchScreen(Block targetBlock, DesignBlock screenBlock) {
+        BlockFace direction = screenBlock.getDetail().getBuildBlock().matchTypeAndDirection(targetBlock);
+        if (direction == null) return null;
+
+        Utils.debug("screen %s,%s,%s", screenBlock.getX(), screenBlock.getY(), screenBlock.getZ());
+        Utils.debug("direction=%s", direction);
 
-        if (! matched) {
-            Utils.debug("didn't match design");
+        Location location = getOrigin(targetBlock.getLocation(), screenBlock, direction);
+        if (location == null) return null;
+        Utils.debug("matched a screen");
+
+        World world = location.getWorld();
+        if (! matchesSentinels(location, direction)) {
+            Utils.debug("sentinel blocks don't match");
+            return null;
+        }
+        if (! templates.get(direction).matches(world, location.getBlockX(), location.getBlockY(), location.getBlockZ())) {
+            Utils.debug("blocks don't match");
             return null;
         }
         Utils.debug("matched design!");
 
-        return new DesignMatch(this, tDesign, world, direction);
+        return new DesignMatch(this, new TransformedDesign(this, location, direction), world, direction);
+    }
+
+    // Same as above but against snapshots of the blocks, so it can be called
+    // off the main thread. The origin comes from getOrigin.
+    boolean matches(RegionSnapshot blocks, Location origin, BlockFace direction) {
+        TransformedDesign.Template template = templates.get(direction);
+        int ox = origin.getBlockX(), oy = origin.getBlockY(), oz = origin.getBlockZ();
+        for (int i : sentinels)
+            if (! template.matches(blocks, ox, oy, oz, i)) return false;
+        return template.matches(blocks, ox, oy, oz);
+    }
+
+    // checks every block against the world, the sentinels first
+    boolean matches(Location origin, BlockFace direction) {
+        if (! matchesSentinels(origin, direction)) return false;
+        return templates.get(direction).matches(origin.getWorld(), origin.getBlockX(), origin.getBlockY(), origin.getBlockZ());
+    }
+
+    // checks just the sentinel blocks against the world
+    boolean matchesSentinels(Location origin, BlockFace direction) {
+        TransformedDesign.Template template = templates.get(direction);
+        World world = origin.getWorld();
+        int ox = origin.getBlockX(), oy = origin.getBlockY(), oz = origin.getBlockZ();
+        for (int i : sentinels)
+            if (! template.matches(world, ox, oy, oz, i)) return false;
+        return true;
+    }
+
+    // Returns the location of the design's 0,0,0 block when the screen block
+    // is at the location and the design faces the direction. The location
+    // is changed.
+    Location getOrigin(Location location, DesignBlock screenBlock, BlockFace direction) {
+        switch (direction) {
+            case NORTH:
+                translate(location, -screenBlock.getX(), -screenBlock.getY(), -screenBlock.getZ());
+//                translate(location, screenBlock.getZ(), -screenBlock.getY(), -screenBlock.getX());
+                break;
+            case EAST:
+                translate(location, screenBlock.getZ(), -screenBlock.getY(), -screenBlock.getX());
+//                translate(location, screenBlock.getX(), -screenBlock.getY(), screenBlock.getZ());
+                break;
+            case SOUTH:
+                translate(location, screenBlock.getX(), -screenBlock.getY(), screenBlock.getZ());
+//                translate(location, -screenBlock.getZ(), -screenBlock.getY(), screenBlock.getX());
+                break;
+            case WEST:
+                translate(location, -screenBlock.getZ(), -screenBlock.getY(), screenBlock.getX());
+//                translate(location, -screenBlock.getX(), -screenBlock.getY(), -screenBlock.getZ());
+                break;
+            default:
+                return null;
+        }
+        return location;
     }
 
     // Returns a new gate if a match in the surrounding blocks is found, otherwise null.
@@ -873,8 +949,18 @@ public class Design {
     // Builds a gate at the specified location, creates it, and returns it.
     // The location must contain a yaw that indicates the gate direction.
     public LocalGateImpl create(Location location, String playerName, String gateName) throws TransporterException {
-        DesignMatch match = build(location, playerName);
-        return create(match, playerName, gateName);
+        final LocalBlockGateImpl[] gate = new LocalBlockGateImpl[1];
+        DesignMatch match = build(location, playerName, new BlockQueue.Callback() {
+            @Override
+            public void onProgress(int done, int total) {}
+            @Override
+            public void onComplete() {
+                // the screens couldn't be drawn if the gate was added before its blocks were placed
+                if (gate[0] != null) gate[0].updateScreens();
+            }
+        });
+        gate[0] = create(match, playerName, gateName);
+        return gate[0];
     }
 
     private Location translate(Location loc, int dx, int dy, int dz) {
@@ -20,7 +20,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
 
 /**
  *
@@ -29,14 +35,39 @@ import org.bukkit.Location;
 public final class Designs {
 
     private static final Map<String,Design> designs = new HashMap<String,Design>();
+
+    // screen blocks of creatable designs, keyed by the screen's material
+    private static final Map<Integer,List<ScreenCandidate>> screenIndex = new HashMap<Integer,List<ScreenCandidate>>();
     private static Map<String,List<SavedBlock>> buildUndos = new HashMap<String,List<SavedBlock>>();
 
     public static void load(Context ctx) {
         designs.clear();
+        screenIndex.clear();
         File designsFolder = new File(Global.plugin.getDataFolder(), "designs");
-        for (File designFile : Utils.listYAMLFiles(designsFolder)) {
+        File[] designFiles = Utils.listYAMLFiles(designsFolder);
+        final YAMLCache cache = YAMLCache.open(designsFolder);
+
+        // designs don't touch the server until they're added, so parse them all at once
+        List<Callable<Design>> tasks = new ArrayList<Callable<Design>>();
+        for (final File designFile : designFiles)
+            tasks.add(new Callable<Design>() {
+                @Override
+                public Design call() throws DesignException, BlockException {
+                    return new Design(designFile, cache);
+                }
+            });
+        List<Future<Design>> results = Utils.invokeAll(tasks);
+        cache.save();
+
+        for (int i = 0; i < designFiles.length; i++) {
+            File designFile = designFiles[i];
             try {
-                Design design = new Design(designFile);
+                Design design;
+                try {
+                    design = results.get(i).get();
+                } catch (ExecutionException ee) {
+                    throw ee.getCause();
+                }
                 if (! design.isEnabled()) continue;
                 try {
                     add(design);
@@ -58,6 +89,16 @@ public final class Designs {
         if (designs.containsKey(design.getName()))
             throw new DesignException("a design with the same type already exists");
         designs.put(design.getName(), design);
+        if (! design.isCreatable()) return;
+        for (DesignBlock screen : design.getScreenBlocks()) {
+            int type = screen.getDetail().getBuildBlock().getType();
+            List<ScreenCandidate> candidates = screenIndex.get(type);
+            if (candidates == null) {
+                candidates = new ArrayList<ScreenCandidate>();
+                screenIndex.put(type, candidates);
+            }
+            candidates.add(new ScreenCandidate(design, screen));
+        }
     }
 
     public static Design get(String name) {
@@ -88,22 +129,92 @@ public final class Designs {
     public static boolean undoBuild(String playerName) {
         List<SavedBlock> blocks = buildUndos.remove(playerName);
         if (blocks == null) return false;
+        BlockQueue.Job job = new BlockQueue.Job(null);
         for (SavedBlock block : blocks)
-            block.restore();
+            job.add(block.getLocation(), block.getBlock());
+        BlockQueue.submit(BlockQueue.BUILD, job);
         return true;
     }
 
     // Attempts to match the blocks around the given location with a design.
     // The location should be the location of a design's screen.
     public static DesignMatch matchScreen(Location location) {
-        for (Design design : designs.values()) {
-            if (! design.isCreatable()) continue;
-            DesignMatch match = design.matchScreen(location);
+        Block block = location.getBlock();
+        List<ScreenCandidate> candidates = screenIndex.get(block.getTypeId());
+        if (candidates == null) return null;
+        World world = location.getWorld();
+        for (ScreenCandidate candidate : candidates) {
+            if (! candidate.design.isBuildableWorld(world)) continue;
+            Utils.debug("checking design '%s'", candidate.design.getName());
+            DesignMatch match = candidate.design.matchScreen(block, candidate.screen);
             if (match != null) return match;
         }
         return null;
     }
 
+    // Same as above but the blocks are matched against chunk snapshots on a
+    // worker thread. The callback is called on the main thread with the match
+    // or null.
+    public static void matchScreen(final Location location, final MatchCallback callback) {
+        final Block block = location.getBlock();
+        List<ScreenCandidate> candidates = screenIndex.get(block.getTypeId());
+        if (candidates == null) {
+            callback.onMatch(null);
+            return;
+        }
+        World world = location.getWorld();
+        final List<ScreenAttempt> attempts = new ArrayList<ScreenAttempt>();
+        int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (ScreenCandidate candidate : candidates) {
+            if (! candidate.design.isBuildableWorld(world)) continue;
+            BlockFace direction = candidate.screen.getDetail().getBuildBlock().matchTypeAndDirection(block);
+            if (direction == null) continue;
+            Location origin = candidate.design.getOrigin(block.getLocation(), candidate.screen, direction);
+            if (origin == null) continue;
+            TransformedDesign.Template template = candidate.design.getTemplate(direction);
+            minX = Math.min(minX, origin.getBlockX() + template.minX);
+            minZ = Math.min(minZ, origin.getBlockZ() + template.minZ);
+            maxX = Math.max(maxX, origin.getBlockX() + template.maxX);
+            maxZ = Math.max(maxZ, origin.getBlockZ() + template.maxZ);
+            attempts.add(new ScreenAttempt(candidate, origin, direction));
+        }
+        if (attempts.isEmpty()) {
+            callback.onMatch(null);
+            return;
+        }
+        final RegionSnapshot blocks = RegionSnapshot.capture(world, minX, minZ, maxX, maxZ);
+        int taskId = Utils.worker(new Runnable() {
+            @Override
+            public void run() {
+                ScreenAttempt found = null;
+                for (ScreenAttempt attempt : attempts)
+                    if (attempt.candidate.design.matches(blocks, attempt.origin, attempt.direction)) {
+                        found = attempt;
+                        break;
+                    }
+                final ScreenAttempt match = found;
+                Utils.fire(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (match == null) {
+                            callback.onMatch(null);
+                            return;
+                        }
+                        DesignMatch confirmed = match.confirm(block);
+                        // something changed, so try every candidate against the world
+                        if (confirmed == null)
+                            confirmed = matchScreen(location);
+                        callback.onMatch(confirmed);
+                    }
+                });
+            }
+        });
+        // no workers while the plugin is disabling
+        if (taskId == -1)
+            callback.onMatch(matchScreen(location));
+    }
+
     static void setBuildUndo(String playerName, List<SavedBlock> savedBlocks) {
         if (playerName == null) return;
         buildUndos.put(playerName, savedBlocks);
@@ -113,4 +224,41 @@ public final class Designs {
         buildUndos.remove(playerName);
     }
 
+    public interface MatchCallback {
+        void onMatch(DesignMatch match);
+    }
+
+    private static final class ScreenAttempt {
+        final ScreenCandidate candidate;
+        final Location origin;
+        final BlockFace direction;
+        ScreenAttempt(ScreenCandidate candidate, Location origin, BlockFace direction) {
+            this.candidate = candidate;
+            this.origin = origin;
+            this.direction = direction;
+        }
+
+        // The world may have changed since the snapshots were taken, so every
+        // block of the match is checked again. The chunks are still loaded and
+        // it's only the one candidate. Returns null if it no longer matches.
+        DesignMatch confirm(Block block) {
+            Design design = candidate.design;
+            if ((candidate.screen.getDetail().getBuildBlock().matchTypeAndDirection(block) != direction) ||
+                (! design.matches(origin, direction))) {
+                Utils.debug("design '%s' no longer matches", design.getName());
+                return null;
+            }
+            return new DesignMatch(design, new TransformedDesign(design, origin, direction), origin.getWorld(), direction);
+        }
+    }
+
+    private static final class ScreenCandidate {
+        final Design design;
+        final DesignBlock screen;
+        ScreenCandidate(Design design, DesignBlock screen) {
+            this.design = design;
+            this.screen = screen;
+        }
+    }
+
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+
+/**
+ * Keeps entities that just went through a gate from going through another
+ * one, or taking damage, right away.
+ *
+ * A lock lasts until it has expired and the entity is off any portal.
+ * Expiry is counted in server ticks. While there are locks, a task looks
+ * at a few slots of the table each tick and drops the locks of entities
+ * that are gone or have expired off a portal.
+ *
+ * All methods must be called on the main thread.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class GateLocks {
+
+    // slots of the table looked at per tick
+    private static final int SWEEP_SLOTS = 64;
+
+    // tick each entity's lock expires, by entity id
+    private static final IntLongMap locks = new IntLongMap();
+    // only used by the sweeper
+    private static final LongObjectMap<Entity> entities = new LongObjectMap<Entity>();
+
+    // only advances while there are locks, which is all that matters
+    private static long tick = 1;
+    private static int sweepPos = 0;
+    private static int taskId = -1;
+
+    public static void add(Entity entity) {
+        int id = entity.getEntityId();
+        locks.put(id, tick + (Config.getGateLockExpiration() / 50));
+        entities.put(id, entity);
+        schedule();
+    }
+
+    public static boolean isLocked(Entity entity) {
+        return locks.containsKey(entity.getEntityId());
+    }
+
+    // removes the lock if it has expired
+    public static boolean remove(Entity entity) {
+        int id = entity.getEntityId();
+        long expires = locks.get(id);
+        if ((expires == 0) || (expires > tick)) return false;
+        remove(id);
+        return true;
+    }
+
+    public static int size() {
+        return locks.size();
+    }
+
+    private static void remove(int id) {
+        locks.remove(id);
+        entities.remove(id);
+    }
+
+    private static void schedule() {
+        if (taskId != -1) return;
+        taskId = Utils.fireDelayed(new Runnable() {
+            @Override
+            public void run() {
+                taskId = -1;
+                sweep();
+            }
+        }, 50);
+    }
+
+    private static void sweep() {
+        tick++;
+        for (int n = 0; (n < SWEEP_SLOTS) && (! locks.isEmpty()); n++) {
+            if (sweepPos >= locks.capacity()) sweepPos = 0;
+            long expires = locks.valueAt(sweepPos);
+            if ((expires != 0) && (expires <= tick)) {
+                int id = locks.keyAt(sweepPos);
+                Entity entity = entities.get(id);
+                if ((entity == null) || (! entity.isValid()) || (! isOnPortal(entity))) {
+                    remove(id);
+                    Utils.debug("swept gate lock for entity %d", id);
+                    // another entry may have moved into this slot
+                    continue;
+                }
+            }
+            sweepPos++;
+        }
+        if (! locks.isEmpty())
+            schedule();
+    }
+
+    private static boolean isOnPortal(Entity entity) {
+        Location loc = entity.getLocation();
+        return Gates.findGate(loc.getWorld(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), GateMap.PORTAL) != null;
+    }
+
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import com.frdfsnlght.transporter.api.TypeMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Keeps all the gates of a world in a single append-only file, used
+ * instead of a file per gate when useGateLog is on.
+ *
+ * Every save appends a record for the gate and every delete appends a
+ * tombstone. An index in memory points at each gate's latest record. The
+ * file is rewritten with only the live records when most of it is dead.
+ * Records are keyed by the name the gate's YAML file would have, so gates
+ * can move between the log and the YAML files.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class GateLog {
+
+    public static final String FILE_NAME = "gates.log";
+
+    private static final int MAGIC = 0x5452504c;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private static final byte BINARY = 0;
+    private static final byte YAML = 1;
+
+    // don't bother compacting until this much of the file is dead
+    private static final long MIN_COMPACT_SIZE = 256 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // open logs by gates folder
+    private static final Map<File,GateLog> logs = new HashMap<File,GateLog>();
+
+    private final File folder;
+    private final File file;
+    private RandomAccessFile raf = null;
+    private FileChannel channel = null;
+
+    // where each gate's latest record starts and how long it is
+    private final Map<String,long[]> index = new HashMap<String,long[]>();
+    private long liveSize = 0;
+    private long fileSize = HEADER_SIZE;
+
+    // only set while loading
+    private ByteBuffer buffer = null;
+
+    // set when the log couldn't be read, nothing is written to it or the folder
+    private boolean failed = false;
+
+    // Opens the log in the gates folder, importing the folder's YAML files if
+    // there's no log yet. Any log already open for the folder is closed. If
+    // the import fails the YAML files are left as they were. If an existing
+    // log can't be read, the folder is marked failed.
+    public static synchronized GateLog open(File folder) throws IOException {
+        GateLog log = logs.remove(folder);
+        if (log != null) log.close();
+        log = new GateLog(folder);
+        if (log.file.exists())
+            readOrFail(log);
+        else
+            log.importFiles();
+        logs.put(folder, log);
+        return log;
+    }
+
+    // Returns the open log for the gates folder, or null if the folder uses
+    // YAML files. A failed log is returned too so gates aren't saved as YAML
+    // files the log would hide once it's readable again.
+    public static synchronized GateLog get(File folder) {
+        return logs.get(folder);
+    }
+
+    // true if the folder's log couldn't be read, so its gates aren't loaded or saved
+    public static synchronized boolean isFailed(File folder) {
+        GateLog log = logs.get(folder);
+        return (log != null) && log.failed;
+    }
+
+    public static synchronized void syncAll() {
+        for (GateLog log : logs.values())
+            log.sync();
+    }
+
+    // Writes the gates in the folder's log out as YAML files and retires the log.
+    public static synchronized void exportFiles(File folder) throws IOException {
+        GateLog log = logs.remove(folder);
+        if ((log == null) || log.failed) {
+            if (! new File(folder, FILE_NAME).exists()) return;
+            log = new GateLog(folder);
+            readOrFail(log);
+        } else
+            log.map();
+        try {
+            // files the log doesn't know about are kept, but out of the way
+            for (File yamlFile : Utils.listYAMLFiles(folder))
+                if (! log.index.containsKey(yamlFile.getName()))
+                    yamlFile.renameTo(new File(folder, yamlFile.getName() + ".orphaned"));
+            for (String key : log.getKeys()) {
+                TypeMap conf = log.read(key);
+                conf.save();
+            }
+        } finally {
+            log.close();
+        }
+        File exported = new File(folder, FILE_NAME + ".exported");
+        exported.delete();
+        if (! log.file.renameTo(exported))
+            throw new IOException("unable to rename " + log.file.getName());
+        Utils.info("exported gate log in %s", folder.getPath());
+    }
+
+    private GateLog(File folder) {
+        this.folder = folder;
+        file = new File(folder, FILE_NAME);
+    }
+
+    private static void readOrFail(GateLog log) throws IOException {
+        boolean done = false;
+        try {
+            log.read();
+            done = true;
+        } finally {
+            if (! done) {
+                log.close();
+                log.index.clear();
+                log.failed = true;
+                logs.put(log.folder, log);
+                Utils.warning("gate log %s can't be read, no gates will be saved in %s until it's fixed", log.file.getPath(), log.folder.getPath());
+            }
+        }
+    }
+
+    public synchronized List<String> getKeys() {
+        return new ArrayList<String>(index.keySet());
+    }
+
+    // Reads a gate's record while loading. Safe to call from any thread.
+    public TypeMap read(String key) {
+        long[] pos;
+        ByteBuffer in;
+        synchronized (this) {
+            pos = index.get(key);
+            if ((pos == null) || (buffer == null)) return null;
+            in = buffer.duplicate();
+        }
+        in.position((int)pos[0]);
+        in.limit((int)(pos[0] + pos[1]));
+        Record record = Record.decode(in);
+        return record.toTypeMap(new File(folder, key));
+    }
+
+    // call once loading is done to let go of the mapped file
+    public synchronized void endLoad() {
+        buffer = null;
+    }
+
+    public synchronized void put(String key, TypeMap conf) throws IOException {
+        if (failed)
+            throw new IOException("the gate log can't be read");
+        append(new Record(PUT, key, conf));
+    }
+
+    public synchronized void delete(String key) throws IOException {
+        if (failed)
+            throw new IOException("the gate log can't be read");
+        if (! index.containsKey(key)) return;
+        append(new Record(DELETE, key, null));
+    }
+
+    public synchronized void sync() {
+        if (channel == null) return;
+        try {
+            channel.force(false);
+        } catch (IOException ioe) {
+            Utils.warning("unable to sync gate log %s: %s", file.getPath(), ioe.getMessage());
+        }
+    }
+
+    private void read() throws IOException {
+        openChannel();
+        long size = channel.size();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if ((size < HEADER_SIZE) || (buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION))
+            throw new IOException("not a gate log: " + file.getPath());
+        long pos = HEADER_SIZE;
+        while (pos < size) {
+            buffer.position((int)pos);
+            Record record = null;
+            int length = 0;
+            if ((size - pos) >= 4) {
+                length = buffer.getInt();
+                if ((length > 0) && (length <= (size - pos - 4))) {
+                    ByteBuffer in = buffer.duplicate();
+                    in.position((int)pos);
+                    in.limit((int)(pos + 4 + length));
+                    record = Record.decode(in);
+                }
+            }
+            if (record == null) {
+                // a save was cut short, drop the rest of the file once it's safe somewhere
+                File damaged = new File(folder, FILE_NAME + ".damaged");
+                copy(damaged);
+                Utils.warning("truncating damaged gate log %s at %s, the original is in %s", file.getPath(), pos, damaged.getName());
+                channel.truncate(pos);
+                size = pos;
+                break;
+            }
+            index(record.key, record.op, pos, 4 + length);
+            pos += 4 + length;
+        }
+        fileSize = size;
+        Utils.debug("gate log %s has %s gates", file.getPath(), index.size());
+        if (isWasteful()) compact();
+    }
+
+    // The log is built in a temporary file that only replaces the YAML files
+    // once every file is in it.
+    private void importFiles() throws IOException {
+        if (! folder.exists())
+            folder.mkdirs();
+        File tmpFile = new File(folder, FILE_NAME + ".import");
+        create(tmpFile);
+        raf = new RandomAccessFile(tmpFile, "rw");
+        channel = raf.getChannel();
+        List<File> imported = new ArrayList<File>();
+        boolean done = false;
+        try {
+            for (File yamlFile : Utils.listYAMLFiles(folder)) {
+                Record record;
+                try {
+                    TypeMap conf = new TypeMap(yamlFile);
+                    conf.load();
+                    record = new Record(PUT, yamlFile.getName(), conf);
+                } catch (Exception e) {
+                    Utils.warning("unable to import gate file %s, it was left alone: %s", yamlFile.getPath(), e.getMessage());
+                    continue;
+                }
+                append(record);
+                imported.add(yamlFile);
+            }
+            channel.force(false);
+            done = true;
+        } finally {
+            closeChannel();
+            if (! done) {
+                tmpFile.delete();
+                index.clear();
+            }
+        }
+        if (! tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            index.clear();
+            throw new IOException("unable to rename " + tmpFile.getName());
+        }
+        openChannel();
+        // keep the files out of the way but around
+        for (File yamlFile : imported)
+            yamlFile.renameTo(new File(folder, yamlFile.getName() + ".imported"));
+        if (! imported.isEmpty())
+            Utils.info("imported %s gate files into %s", imported.size(), file.getPath());
+
+        // loading goes through the mapped buffer
+        map();
+    }
+
+    private void append(Record record) throws IOException {
+        ByteBuffer data = record.encode();
+        int length = data.remaining();
+        long pos = fileSize;
+        channel.position(pos);
+        while (data.hasRemaining())
+            channel.write(data);
+        fileSize += length;
+        index(record.key, record.op, pos, length);
+        if (isWasteful()) compact();
+    }
+
+    private void index(String key, byte op, long pos, long length) {
+        long[] old = index.remove(key);
+        if (old != null) liveSize -= old[1];
+        if (op == PUT) {
+            index.put(key, new long[] {pos, length});
+            liveSize += length;
+        }
+    }
+
+    private boolean isWasteful() {
+        long dead = fileSize - HEADER_SIZE - liveSize;
+        return (dead > MIN_COMPACT_SIZE) && (dead > liveSize);
+    }
+
+    // rewrites the log with only the latest record of each gate
+    private void compact() throws IOException {
+        File tmpFile = new File(folder, FILE_NAME + ".tmp");
+        Map<String,long[]> newIndex = new HashMap<String,long[]>();
+        long pos = HEADER_SIZE;
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            FileChannel tmpChannel = out.getChannel();
+            tmpChannel.write(header());
+            for (Map.Entry<String,long[]> e : index.entrySet()) {
+                long[] old = e.getValue();
+                ByteBuffer data = ByteBuffer.allocate((int)old[1]);
+                while (data.hasRemaining())
+                    if (channel.read(data, old[0] + data.position()) < 0)
+                        throw new IOException("unexpected end of gate log");
+                data.flip();
+                while (data.hasRemaining())
+                    tmpChannel.write(data);
+                newIndex.put(e.getKey(), new long[] {pos, old[1]});
+                pos += old[1];
+            }
+            tmpChannel.force(false);
+        } finally {
+            out.close();
+        }
+        closeChannel();
+        if ((! tmpFile.renameTo(file)) && ((! file.delete()) || (! tmpFile.renameTo(file)))) {
+            tmpFile.delete();
+            openChannel();
+            throw new IOException("unable to rename " + tmpFile.getName());
+        }
+        openChannel();
+        index.clear();
+        index.putAll(newIndex);
+        fileSize = pos;
+        liveSize = pos - HEADER_SIZE;
+        // the old mapping is gone
+        if (buffer != null) map();
+        Utils.debug("compacted gate log %s", file.getPath());
+    }
+
+    private void map() throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+    }
+
+    private void copy(File dest) throws IOException {
+        FileOutputStream out = new FileOutputStream(dest);
+        try {
+            FileChannel outChannel = out.getChannel();
+            long size = channel.size();
+            long pos = 0;
+            while (pos < size)
+                pos += channel.transferTo(pos, size - pos, outChannel);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void create(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.getChannel().write(header());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        return header;
+    }
+
+    private void openChannel() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    private void closeChannel() {
+        if (raf == null) return;
+        try {
+            raf.close();
+        } catch (IOException e) {}
+        raf = null;
+        channel = null;
+    }
+
+    private synchronized void close() {
+        sync();
+        buffer = null;
+        closeChannel();
+    }
+
+    /*
+     * Each record is:
+     *
+     *      int     length of the rest of the record
+     *      int     CRC32 of the rest of the record
+     *      byte    PUT or DELETE
+     *      int     key length
+     *      byte[]  key (UTF-8)
+     *      byte    BINARY or YAML (PUT only)
+     *      byte[]  the gate's settings (PUT only)
+     */
+    private static final class Record {
+        final byte op;
+        final String key;
+        byte format;
+        byte[] data;
+
+        Record(byte op, String key, TypeMap conf) {
+            this.op = op;
+            this.key = key;
+            if (op != PUT) return;
+            data = YAMLCache.encode(conf);
+            format = BINARY;
+            if (data == null) {
+                // has something the binary format can't hold
+                StringWriter writer = new StringWriter();
+                conf.save(writer);
+                data = writer.toString().getBytes(UTF8);
+                format = YAML;
+            }
+        }
+
+        private Record(byte op, String key, byte format, byte[] data) {
+            this.op = op;
+            this.key = key;
+            this.format = format;
+            this.data = data;
+        }
+
+        ByteBuffer encode() {
+            byte[] keyBytes = key.getBytes(UTF8);
+            int length = 4 + 1 + 4 + keyBytes.length + ((op == PUT) ? (1 + data.length) : 0);
+            ByteBuffer out = ByteBuffer.allocate(4 + length);
+            out.putInt(length);
+            out.putInt(0);
+            out.put(op);
+            out.putInt(keyBytes.length);
+            out.put(keyBytes);
+            if (op == PUT) {
+                out.put(format);
+                out.put(data);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(out.array(), 8, length - 4);
+            out.putInt(4, (int)crc.getValue());
+            out.flip();
+            return out;
+        }
+
+        // returns null if the record is damaged
+        static Record decode(ByteBuffer in) {
+            try {
+                int length = in.getInt();
+                int crcValue = in.getInt();
+                byte[] body = new byte[length - 4];
+                in.get(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int)crc.getValue() != crcValue) return null;
+                ByteBuffer b = ByteBuffer.wrap(body);
+                byte op = b.get();
+                byte[] keyBytes = new byte[b.getInt()];
+                b.get(keyBytes);
+                String key = new String(keyBytes, UTF8);
+                if (op == DELETE)
+                    return new Record(op, key, (byte)0, null);
+                if (op != PUT) return null;
+                byte format = b.get();
+                byte[] data = new byte[b.remaining()];
+                b.get(data);
+                return new Record(op, key, format, data);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        TypeMap toTypeMap(File file) {
+            Object o;
+            if (format == BINARY)
+                o = YAMLCache.decode(ByteBuffer.wrap(data));
+            else
+                o = new Yaml().load(new String(data, UTF8));
+            TypeMap map = new TypeMap(file);
+            if (o instanceof Map)
+                for (Object k : ((Map<?,?>)o).keySet())
+                    map.set(k.toString(), ((Map<?,?>)o).get(k));
+            return map;
+        }
+    }
+
+}
@@ -15,6 +15,7 @@
  */
 package com.frdfsnlght.transporter;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -29,34 +30,150 @@ import org.bukkit.World;
  */
 public final class GateMap {
 
-    private Map<World,WorldMap> worlds = new HashMap<World,WorldMap>();
+    // Roles a gate block or volume can play, a volume can have several
+    public static final int PORTAL = 1;
+    public static final int PROTECTION = 2;
+    public static final int SCREEN = 4;
+    public static final int SWITCH = 8;
+    public static final int TRIGGER = 16;
+
+    private static final int ROLE_COUNT = 5;
+
+    // The published maps. Neither this map nor anything reachable from it is
+    // changed once it's been assigned here, so readers on any thread get a
+    // consistent view without locking. Writers build a new version and swap it in.
+    private volatile Map<World,WorldMap> worlds = Collections.emptyMap();
+
+    // bumped every time a new version is published
+    private volatile int version = 0;
+
+    // Changes made during a batch go to these unpublished maps, readers keep
+    // seeing the last published version until the batch ends.
+    private Map<World,WorldMap> batch = null;
+    private int batchDepth = 0;
 
     public GateMap() {}
 
-    public void put(Volume volume) {
+    // the volume must not be changed after it's been put
+    public synchronized void put(Volume volume) {
         World world = volume.getWorld();
-        if (! worlds.containsKey(world))
-            worlds.put(world, new WorldMap());
-        worlds.get(world).add(volume);
+        WorldMap wmap = getWorldMap(world);
+        if (wmap == null) wmap = new WorldMap();
+        publish(world, wmap.add(volume, batch == null));
+    }
+
+    // Starts collecting changes so they're published together, like when
+    // gates are loaded. The trees are built once when the batch ends instead
+    // of after every change.
+    public synchronized void beginBatch() {
+        if (batchDepth++ == 0)
+            batch = new HashMap<World,WorldMap>(worlds);
+    }
+
+    public synchronized void endBatch() {
+        if ((batchDepth == 0) || (--batchDepth > 0)) return;
+        Map<World,WorldMap> newWorlds = batch;
+        batch = null;
+        for (WorldMap wmap : newWorlds.values())
+            wmap.build();
+        version++;
+        worlds = Collections.unmodifiableMap(newWorlds);
+    }
+
+    // returns the first gate with any of the roles at the location
+    public LocalGateImpl getGate(Location location, int roles) {
+        return getGate(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(), roles);
+    }
+
+    // same as above but doesn't allocate anything
+    public LocalGateImpl getGate(World world, int x, int y, int z, int roles) {
+        VolumeNode node = getNode(world, x, y, z);
+        if (node == null) return null;
+        return node.getGate(x, y, z, roles);
+    }
+
+    // returns every role at the location and the gate playing each one, or null
+    public Lookup lookup(Location location) {
+        return lookup(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
     }
 
-    public LocalGateImpl getGate(Location location) {
-        World world = location.getWorld();
+    // only allocates when something is found
+    public Lookup lookup(World world, int x, int y, int z) {
+        VolumeNode node = getNode(world, x, y, z);
+        if (node == null) return null;
+        int roles = node.getRoles(x, y, z);
+        if (roles == 0) return null;
+        Lookup lookup = new Lookup();
+        node.lookup(x, y, z, lookup);
+        return lookup;
+    }
+
+    // Returns the horizontal distance in blocks from the block to the bounds
+    // of the nearest volume playing any of the roles, or limit if there's
+    // nothing that close. Only the chunk index is searched.
+    public int getDistance(World world, int x, int z, int roles, int limit) {
+        WorldMap wmap = worlds.get(world);
+        if (wmap == null) return limit;
+        return wmap.getDistance(x, z, roles, limit);
+    }
+
+    // Returns the gate with the nearest volume playing any of the roles
+    // closer than limit, or null.
+    public LocalGateImpl getNearestGate(World world, int x, int z, int roles, int limit) {
         WorldMap wmap = worlds.get(world);
         if (wmap == null) return null;
-        VolumeNode node = wmap.getNode(location);
-        if (node == null) return null;
-        return node.getGate(location);
+        return wmap.getNearestGate(x, z, roles, limit);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    private VolumeNode getNode(World world, int x, int y, int z) {
+        WorldMap wmap = worlds.get(world);
+        if (wmap == null) return null;
+        if (! wmap.mayContain(x, z)) return null;
+        return wmap.getNode(x, y, z);
     }
 
     public void removeGate(LocalGateImpl gate) {
+        removeGate(gate, ~0);
+    }
+
+    // removes the gate's volumes that play any of the roles
+    public synchronized void removeGate(LocalGateImpl gate, int roles) {
         World world = gate.getWorld();
-        if (worlds.containsKey(world))
-            worlds.get(world).removeGate(gate);
+        WorldMap wmap = getWorldMap(world);
+        if (wmap == null) return;
+        WorldMap newMap = wmap.removeGate(gate, roles, batch == null);
+        if (newMap != wmap)
+            publish(world, newMap);
+    }
+
+    public synchronized void removeWorld(World world) {
+        if (getWorldMap(world) != null)
+            publish(world, null);
+    }
+
+    private WorldMap getWorldMap(World world) {
+        return (batch == null) ? worlds.get(world) : batch.get(world);
     }
 
-    public void removeWorld(World world) {
-        worlds.remove(world);
+    private void publish(World world, WorldMap wmap) {
+        if (batch != null) {
+            if ((wmap == null) || (wmap.size() == 0))
+                batch.remove(world);
+            else
+                batch.put(world, wmap);
+            return;
+        }
+        Map<World,WorldMap> newWorlds = new HashMap<World,WorldMap>(worlds);
+        if ((wmap == null) || (wmap.size() == 0))
+            newWorlds.remove(world);
+        else
+            newWorlds.put(world, wmap);
+        version++;
+        worlds = Collections.unmodifiableMap(newWorlds);
     }
 
     public int size() {
@@ -75,11 +192,12 @@ public final class GateMap {
 
     @Override
     public String toString() {
+        Map<World,WorldMap> worlds = this.worlds;
         StringBuilder sb = new StringBuilder();
         sb.append("GateMap[");
         sb.append(worlds.size()).append(" worlds: ");
-        for (World world : worlds.keySet()) {
-            sb.append(worlds.get(world).toString());
+        for (WorldMap wmap : worlds.values()) {
+            sb.append(wmap.toString());
             sb.append(",");
         }
         sb.append("]");
@@ -96,6 +214,30 @@ public final class GateMap {
         return sb.toString();
     }
 
+    public static long chunkKey(int cx, int cz) {
+        return ((long)cx << 32) | ((long)cz & 0xffffffffL);
+    }
+
+    public static final class Lookup {
+        private LocalGateImpl[] gates = new LocalGateImpl[ROLE_COUNT];
+        private int roles = 0;
+        public int getRoles() { return roles; }
+        public boolean hasRole(int role) { return (roles & role) != 0; }
+        public LocalGateImpl getGate(int role) {
+            if ((roles & role) == 0) return null;
+            return gates[Integer.numberOfTrailingZeros(role)];
+        }
+        // the first gate found for a role wins
+        private void add(LocalGateImpl gate, int r) {
+            r &= ~roles;
+            roles |= r;
+            while (r != 0) {
+                gates[Integer.numberOfTrailingZeros(r)] = gate;
+                r &= r - 1;
+            }
+        }
+    }
+
     public static final class Point {
         int x, y, z;
         public Point() {}
@@ -123,7 +265,7 @@ public final class GateMap {
         }
         @Override
         public int hashCode() {
-            return x + y + x;
+            return (((x * 31) + y) * 31) + z;
         }
         @Override
         public String toString() {
@@ -163,10 +305,24 @@ public final class GateMap {
             expand(b.min);
             expand(b.max);
         }
+        public boolean intersects(Bounds b) {
+            return (b.min.x <= max.x) && (b.max.x >= min.x) &&
+                   (b.min.z <= max.z) && (b.max.z >= min.z) &&
+                   (b.min.y <= max.y) && (b.max.y >= min.y);
+        }
         public boolean contains(Location loc) {
-            return (loc.getBlockX() >= min.x) && (loc.getBlockX() <= max.x) &&
-                   (loc.getBlockZ() >= min.z) && (loc.getBlockZ() <= max.z) &&
-                   (loc.getBlockY() >= min.y) && (loc.getBlockY() <= max.y);
+            return contains(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        }
+        public boolean contains(int x, int y, int z) {
+            return (x >= min.x) && (x <= max.x) &&
+                   (z >= min.z) && (z <= max.z) &&
+                   (y >= min.y) && (y <= max.y);
+        }
+        // horizontal distance to the nearest column inside, 0 if inside
+        public int getDistance(int x, int z) {
+            int dx = Math.max(Math.max(min.x - x, x - max.x), 0);
+            int dz = Math.max(Math.max(min.z - z, z - max.z), 0);
+            return Math.max(dx, dz);
         }
         public int sizeX() { return max.x - min.x; }
         public int sizeY() { return max.y - min.y; }
@@ -195,30 +351,177 @@ public final class GateMap {
         }
     }
 
-    private class WorldMap {
-
-        private Set<Volume> volumes = new HashSet<Volume>();
-        private VolumeNode root = null;
+    // A world's volumes, tree and chunk index. A WorldMap is never changed
+    // once it's been published. add and removeGate return a modified copy
+    // that shares the unchanged parts of the tree and indexes with this one,
+    // so a change costs about the log of the number of volumes.
+    private static final class WorldMap {
+
+        // minimum number of incremental changes before a full rebuild is considered
+        private static final int REBALANCE_THRESHOLD = 64;
+
+        // volumes spanning more chunks than this aren't put in the chunk index
+        private static final int MAX_INDEXED_CHUNKS = 1024;
+
+        private static final Volume[] NO_VOLUMES = new Volume[0];
+
+        // each gate's volumes
+        private PersistentMap<LocalGateImpl,Volume[]> gateVolumes;
+        private int size;
+
+        // null until build() is called if the map was changed in a batch
+        private VolumeNode root;
+        private int changes;
+
+        // volumes touching each chunk, keyed by chunk coordinates
+        private PersistentMap<Long,Volume[]> chunks;
+
+        // volumes too big for the chunk index
+        private Volume[] wideVolumes;
+
+        WorldMap() {
+            gateVolumes = PersistentMap.empty();
+            size = 0;
+            root = null;
+            changes = 0;
+            chunks = PersistentMap.empty();
+            wideVolumes = NO_VOLUMES;
+        }
+
+        private WorldMap(WorldMap wmap) {
+            gateVolumes = wmap.gateVolumes;
+            size = wmap.size;
+            root = wmap.root;
+            changes = wmap.changes;
+            chunks = wmap.chunks;
+            wideVolumes = wmap.wideVolumes;
+        }
+
+        // the tree is left for build() if updateTree is false
+        WorldMap add(Volume volume, boolean updateTree) {
+            Volume[] vols = gateVolumes.get(volume.getGate());
+            if (volume.isEmpty() || (indexOf(vols, volume) != -1)) return this;
+            WorldMap wmap = new WorldMap(this);
+            wmap.gateVolumes = gateVolumes.plus(volume.getGate(), append(vols, volume));
+            wmap.size++;
+            wmap.index(volume);
+            if (! updateTree)
+                wmap.root = null;
+            else if (wmap.root == null)
+                wmap.recalculate();
+            else {
+                wmap.root = wmap.root.insert(volume);
+                wmap.changed();
+            }
+            return wmap;
+        }
+
+        // the tree is left for build() if updateTree is false
+        WorldMap removeGate(LocalGateImpl gate, int roles, boolean updateTree) {
+            Volume[] vols = gateVolumes.get(gate);
+            if (vols == null) return this;
+            int kept = 0;
+            for (Volume volume : vols)
+                if ((volume.roles & roles) == 0) kept++;
+            if (kept == vols.length) return this;
+            WorldMap wmap = new WorldMap(this);
+            Volume[] keep = new Volume[kept];
+            kept = 0;
+            for (Volume volume : vols) {
+                if ((volume.roles & roles) == 0) {
+                    keep[kept++] = volume;
+                    continue;
+                }
+                wmap.size--;
+                wmap.unindex(volume);
+                if (updateTree && (wmap.root != null))
+                    wmap.root = wmap.root.remove(volume);
+            }
+            wmap.gateVolumes = (kept == 0) ? gateVolumes.minus(gate) : gateVolumes.plus(gate, keep);
+            if (! updateTree)
+                wmap.root = null;
+            else if ((wmap.size == 0) || (wmap.root == null))
+                wmap.recalculate();
+            else
+                wmap.changed();
+            return wmap;
+        }
 
-        void add(Volume volume) {
-            volumes.add(volume);
-            recalculate();
+        // Builds the tree if a batch left it out. Only called before the map
+        // is published.
+        void build() {
+            if ((root == null) && (size > 0))
+                recalculate();
         }
 
-        VolumeNode getNode(Location loc) {
+        VolumeNode getNode(int x, int y, int z) {
             if (root == null) return null;
-            return root.getNode(loc);
+            return root.getNode(x, y, z);
+        }
+
+        // Quick check done before walking the tree. Most lookups come from
+        // move, flow and redstone events nowhere near a gate, so those are
+        // rejected with one probe of the chunk index.
+        boolean mayContain(int x, int z) {
+            if (chunks.get(chunkKey(x >> 4, z >> 4)) != null) return true;
+            for (int i = 0; i < wideVolumes.length; i++) {
+                Bounds b = wideVolumes[i].bounds;
+                if ((x >= b.min.x) && (x <= b.max.x) &&
+                    (z >= b.min.z) && (z <= b.max.z)) return true;
+            }
+            return false;
         }
 
-        void removeGate(LocalGateImpl gate) {
-            for (Iterator<Volume> i = volumes.iterator(); i.hasNext(); )
-                if (i.next().getGate() == gate)
-                    i.remove();
-            recalculate();
+        int getDistance(int x, int z, int roles, int limit) {
+            int distance = limit;
+            int radius = (limit >> 4) + 1;
+            for (int cx = (x >> 4) - radius; cx <= (x >> 4) + radius; cx++)
+                for (int cz = (z >> 4) - radius; cz <= (z >> 4) + radius; cz++) {
+                    Volume[] vols = chunks.get(chunkKey(cx, cz));
+                    if (vols == null) continue;
+                    for (int i = 0; i < vols.length; i++)
+                        if ((vols[i].roles & roles) != 0)
+                            distance = Math.min(distance, vols[i].bounds.getDistance(x, z));
+                }
+            for (int i = 0; i < wideVolumes.length; i++) {
+                Volume vol = wideVolumes[i];
+                if ((vol.roles & roles) != 0)
+                    distance = Math.min(distance, vol.bounds.getDistance(x, z));
+            }
+            return distance;
+        }
+
+        LocalGateImpl getNearestGate(int x, int z, int roles, int limit) {
+            LocalGateImpl gate = null;
+            int distance = limit;
+            int radius = (limit >> 4) + 1;
+            for (int cx = (x >> 4) - radius; cx <= (x >> 4) + radius; cx++)
+                for (int cz = (z >> 4) - radius; cz <= (z >> 4) + radius; cz++) {
+                    Volume[] vols = chunks.get(chunkKey(cx, cz));
+                    if (vols == null) continue;
+                    for (int i = 0; i < vols.length; i++) {
+                        if ((vols[i].roles & roles) == 0) continue;
+                        int d = vols[i].bounds.getDistance(x, z);
+                        if (d < distance) {
+                            distance = d;
+                            gate = vols[i].getGate();
+                        }
+                    }
+                }
+            for (int i = 0; i < wideVolumes.length; i++) {
+                Volume vol = wideVolumes[i];
+                if ((vol.roles & roles) == 0) continue;
+                int d = vol.bounds.getDistance(x, z);
+                if (d < distance) {
+                    distance = d;
+                    gate = vol.getGate();
+                }
+            }
+            return gate;
         }
 
         int size() {
-            return volumes.size();
+            return size;
         }
 
         int nodeCount() {
@@ -226,21 +529,108 @@ public final class GateMap {
             return root.nodeCount();
         }
 
+        private void index(Volume volume) {
+            if (volume.points != null) {
+                for (long key : volume.points.keys())
+                    indexChunk(chunkKey(BlockKeyMap.keyX(key) >> 4, BlockKeyMap.keyZ(key) >> 4), volume);
+                return;
+            }
+            Bounds b = volume.bounds;
+            if (((long)((b.max.x >> 4) - (b.min.x >> 4) + 1) * ((b.max.z >> 4) - (b.min.z >> 4) + 1)) > MAX_INDEXED_CHUNKS) {
+                wideVolumes = append(wideVolumes, volume);
+                return;
+            }
+            for (int cx = b.min.x >> 4; cx <= (b.max.x >> 4); cx++)
+                for (int cz = b.min.z >> 4; cz <= (b.max.z >> 4); cz++)
+                    indexChunk(chunkKey(cx, cz), volume);
+        }
+
+        private void indexChunk(long key, Volume volume) {
+            Volume[] vols = chunks.get(key);
+            if (indexOf(vols, volume) != -1) return;
+            chunks = chunks.plus(key, append(vols, volume));
+        }
+
+        private void unindex(Volume volume) {
+            int i = indexOf(wideVolumes, volume);
+            if (i != -1) {
+                wideVolumes = removeAt(wideVolumes, i);
+                return;
+            }
+            if (volume.points != null) {
+                for (long key : volume.points.keys())
+                    unindexChunk(chunkKey(BlockKeyMap.keyX(key) >> 4, BlockKeyMap.keyZ(key) >> 4), volume);
+                return;
+            }
+            Bounds b = volume.bounds;
+            for (int cx = b.min.x >> 4; cx <= (b.max.x >> 4); cx++)
+                for (int cz = b.min.z >> 4; cz <= (b.max.z >> 4); cz++)
+                    unindexChunk(chunkKey(cx, cz), volume);
+        }
+
+        private void unindexChunk(long key, Volume volume) {
+            Volume[] vols = chunks.get(key);
+            int i = indexOf(vols, volume);
+            if (i == -1) return;
+            if (vols.length == 1)
+                chunks = chunks.minus(key);
+            else
+                chunks = chunks.plus(key, removeAt(vols, i));
+        }
+
+        // Incremental inserts and removes never move a node's center, so after
+        // enough of them the tree is rebuilt from scratch. Since that only
+        // happens after as many changes as there are volumes, the cost of the
+        // rebuild is spread across those changes.
+        private void changed() {
+            changes++;
+            if (changes > Math.max(REBALANCE_THRESHOLD, size))
+                recalculate();
+        }
+
         private void recalculate() {
-//            Utils.debug("!!!! recalculate worldmap !!!!");
-//            Utils.debug(toString());
+            changes = 0;
+            root = null;
+            if (size == 0) return;
+            root = VolumeNode.build(getVolumes());
+        }
+
+        private Set<Volume> getVolumes() {
+            Set<Volume> volumes = new HashSet<Volume>(size * 2);
+            for (Volume[] vols : gateVolumes.values())
+                for (Volume vol : vols)
+                    volumes.add(vol);
+            return volumes;
+        }
+
+        private static int indexOf(Volume[] vols, Volume volume) {
+            if (vols == null) return -1;
+            for (int i = 0; i < vols.length; i++)
+                if (vols[i] == volume) return i;
+            return -1;
+        }
+
+        private static Volume[] append(Volume[] vols, Volume volume) {
+            if (vols == null) return new Volume[] { volume };
+            Volume[] newVols = new Volume[vols.length + 1];
+            System.arraycopy(vols, 0, newVols, 0, vols.length);
+            newVols[vols.length] = volume;
+            return newVols;
+        }
 
-            if (root != null) root.destroy();
-            if ((volumes == null) || volumes.isEmpty()) return;
-            root = new VolumeNode(null, volumes);
+        private static Volume[] removeAt(Volume[] vols, int i) {
+            Volume[] newVols = new Volume[vols.length - 1];
+            System.arraycopy(vols, 0, newVols, 0, i);
+            System.arraycopy(vols, i + 1, newVols, i, newVols.length - i);
+            return newVols;
         }
 
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("WorldMap[");
-            sb.append(volumes.size()).append(" volumes:\n");
-            for (Volume volume : volumes) {
+            sb.append(size).append(" volumes:\n");
+            for (Volume volume : getVolumes()) {
                 sb.append(volume.toString());
                 sb.append(",\n");
             }
@@ -253,21 +643,48 @@ public final class GateMap {
     public static final class Volume {
         protected LocalGateImpl gate;
         protected Bounds bounds = new Bounds();
-        protected Set<Point> points = null;
+        protected BlockKeyMap points = null;
+        protected int roles;
+        // the volume this one was split from, or itself
+        protected Volume source;
         public Volume(LocalGateImpl gate) {
+            this(gate, 0);
+        }
+        public Volume(LocalGateImpl gate, int roles) {
             this.gate = gate;
+            this.roles = roles;
+            source = this;
+        }
+        private Volume(Volume parent, int roles) {
+            this(parent.gate, roles);
+            source = parent.source;
         }
         public World getWorld() { return gate.getWorld(); }
         public Bounds getBounds() { return bounds; }
         public LocalGateImpl getGate() { return gate; }
+        public int getRoles() { return roles; }
+        public boolean isEmpty() {
+            if (points == null) return roles == 0;
+            return points.isEmpty();
+        }
         public void addPoint(Point p) {
+            addPoint(p.x, p.y, p.z, roles);
+        }
+        public void addPoint(int x, int y, int z, int pointRoles) {
+            roles |= pointRoles;
             if (points == null) {
-                points = new HashSet<Point>();
-                points.add(p);
-                bounds.set(p);
-            } else {
-                points.add(p);
-                bounds.expand(p);
+                points = new BlockKeyMap();
+                points.add(x, y, z, pointRoles);
+                bounds.min.x = bounds.max.x = x;
+                bounds.min.y = bounds.max.y = y;
+                bounds.min.z = bounds.max.z = z;
+            } else if (points.add(x, y, z, pointRoles)) {
+                bounds.min.x = Math.min(bounds.min.x, x);
+                bounds.min.y = Math.min(bounds.min.y, y);
+                bounds.min.z = Math.min(bounds.min.z, z);
+                bounds.max.x = Math.max(bounds.max.x, x);
+                bounds.max.y = Math.max(bounds.max.y, y);
+                bounds.max.z = Math.max(bounds.max.z, z);
             }
         }
         public void setBounds(Bounds b) {
@@ -279,18 +696,21 @@ public final class GateMap {
             bounds.expand(p2);
         }
         public boolean contains(Location loc) {
-            Point lp = new Point(loc);
-            if (points == null) {
-                if (bounds.contains(loc)) {
-                    return true;
-                }
-                return false;
-            }
-            for (Point p : points)
-                if (p.equals(lp)) {
-                    return true;
-                }
-            return false;
+            return contains(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        }
+        public boolean contains(int x, int y, int z) {
+            if (! bounds.contains(x, y, z)) return false;
+            if (points == null) return true;
+            return points.contains(x, y, z);
+        }
+        // returns the roles this volume plays at the location
+        public int getRoles(Location loc) {
+            return getRoles(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        }
+        public int getRoles(int x, int y, int z) {
+            if (! bounds.contains(x, y, z)) return 0;
+            if (points == null) return roles;
+            return points.get(x, y, z);
         }
         public Volume[] split(Point center) {
             Volume[] vols = new Volume[4];
@@ -319,29 +739,19 @@ public final class GateMap {
                 for (int quad = 0; quad < 4; quad++) {
                     Bounds b = bounds.trim(center, quad);
                     if (b == null) continue;
-                    vols[quad] = new Volume(gate);
+                    vols[quad] = new Volume(this, roles);
                     vols[quad].setBounds(b);
                 }
 
             } else {
-                for (Point p : points)
-                    if (p.x < center.x) {
-                        if (p.z < center.z) {
-                            if (vols[0] == null) vols[0] = new Volume(gate);
-                            vols[0].addPoint(p);
-                        } else {
-                            if (vols[1] == null) vols[1] = new Volume(gate);
-                            vols[1].addPoint(p);
-                        }
-                    } else {
-                        if (p.z < center.z) {
-                            if (vols[2] == null) vols[2] = new Volume(gate);
-                            vols[2].addPoint(p);
-                        } else {
-                            if (vols[3] == null) vols[3] = new Volume(gate);
-                            vols[3].addPoint(p);
-                        }
-                    }
+                for (long key : points.keys()) {
+                    int x = BlockKeyMap.keyX(key);
+                    int y = BlockKeyMap.keyY(key);
+                    int z = BlockKeyMap.keyZ(key);
+                    int quad = ((x < center.x) ? 0 : 2) + ((z < center.z) ? 0 : 1);
+                    if (vols[quad] == null) vols[quad] = new Volume(this, 0);
+                    vols[quad].addPoint(x, y, z, points.get(key));
+                }
             }
             return vols;
         }
@@ -354,7 +764,9 @@ public final class GateMap {
                 sb.append(gate.getName());
                 sb.append(",");
             }
-            sb.append("b=");
+            sb.append("r=");
+            sb.append(roles);
+            sb.append(",b=");
             sb.append(bounds);
             if (points != null) {
                 sb.append(",p=");
@@ -365,16 +777,27 @@ public final class GateMap {
         }
     }
 
-    private final class VolumeNode {
+    // Nodes are never changed once built. Inserting or removing a volume
+    // copies the nodes on the way down to the change and shares the rest
+    // with the previous tree.
+    private static final class VolumeNode {
         private static final int LEAF_SIZE = 16;
-        VolumeNode parent = null;
-        Point center;
-        Bounds bounds;
-        VolumeNode[] children = null;
-        Set<Volume> volumes = null;
-        VolumeNode(VolumeNode parent, Set<Volume> volumes) {
-            this.parent = parent;
-            center = new Point();
+        private static final int MERGE_LIMIT = 16;
+        final Point center;
+        final Bounds bounds;
+        final VolumeNode[] children;
+        final Set<Volume> volumes;
+        // the leaf's volumes again, lookups walk these without an iterator
+        final Volume[] leaf;
+        private VolumeNode(Point center, Bounds bounds, VolumeNode[] children, Set<Volume> volumes) {
+            this.center = center;
+            this.bounds = bounds;
+            this.children = children;
+            this.volumes = volumes;
+            leaf = (volumes == null) ? null : volumes.toArray(new Volume[volumes.size()]);
+        }
+        static VolumeNode build(Set<Volume> volumes) {
+            Point center = new Point();
 
             // find the center
             for (Volume vol : volumes) {
@@ -386,7 +809,7 @@ public final class GateMap {
             center.y = center.y / (volumes.size() * 2);
             center.z = center.z / (volumes.size() * 2);
 
-            bounds = new Bounds();
+            Bounds bounds = new Bounds();
             bounds.set(center);
             Set<Volume> vols0 = new HashSet<Volume>();
             Set<Volume> vols1 = new HashSet<Volume>();
@@ -404,27 +827,92 @@ public final class GateMap {
             }
 
             // limit tree growth
-            if ((bounds.sizeX() <= LEAF_SIZE) &&
-                (bounds.sizeZ() <= LEAF_SIZE)) {
-                this.volumes = volumes;
-                return;
+            if (isLeafSized(bounds))
+                return new VolumeNode(center, bounds, null, volumes);
+
+            VolumeNode[] children = new VolumeNode[4];
+            if (! vols0.isEmpty()) children[0] = build(vols0);
+            if (! vols1.isEmpty()) children[1] = build(vols1);
+            if (! vols2.isEmpty()) children[2] = build(vols2);
+            if (! vols3.isEmpty()) children[3] = build(vols3);
+            return new VolumeNode(center, bounds, children, null);
+        }
+        private static boolean isLeafSized(Bounds bounds) {
+            return (bounds.sizeX() <= LEAF_SIZE) &&
+                   (bounds.sizeZ() <= LEAF_SIZE);
+        }
+        VolumeNode insert(Volume vol) {
+            Bounds b = new Bounds(bounds.min, bounds.max);
+            b.expand(vol.bounds);
+            if (children == null) {
+                Set<Volume> vols = new HashSet<Volume>(volumes);
+                vols.add(vol);
+                // split the leaf if it grew too big
+                if (! isLeafSized(b))
+                    return build(vols);
+                return new VolumeNode(center, b, null, vols);
             }
-
-            children = new VolumeNode[4];
-            if (! vols0.isEmpty()) children[0] = new VolumeNode(this, vols0);
-            if (! vols1.isEmpty()) children[1] = new VolumeNode(this, vols1);
-            if (! vols2.isEmpty()) children[2] = new VolumeNode(this, vols2);
-            if (! vols3.isEmpty()) children[3] = new VolumeNode(this, vols3);
-
-        }
-        void destroy() {
-            volumes = null;
-            parent = null;
-            if (children != null) {
-                for (int i = 0; i < 4; i++)
-                    if (children[i] != null) children[i].destroy();
-                children = null;
+            VolumeNode[] kids = children.clone();
+            Volume[] vols = vol.split(center);
+            for (int quad = 0; quad < 4; quad++) {
+                if (vols[quad] == null) continue;
+                if (kids[quad] == null) {
+                    Set<Volume> quadVols = new HashSet<Volume>();
+                    quadVols.add(vols[quad]);
+                    kids[quad] = build(quadVols);
+                } else
+                    kids[quad] = kids[quad].insert(vols[quad]);
+            }
+            return new VolumeNode(center, b, kids, null);
+        }
+        // returns this node if nothing changed, or null if the node is now empty
+        VolumeNode remove(Volume source) {
+            if (! bounds.intersects(source.bounds)) return this;
+            if (children == null) {
+                Set<Volume> vols = new HashSet<Volume>();
+                for (Volume vol : volumes)
+                    if (vol.source != source) vols.add(vol);
+                if (vols.size() == volumes.size()) return this;
+                if (vols.isEmpty()) return null;
+                return new VolumeNode(center, bounds, null, vols);
+            }
+            VolumeNode[] kids = null;
+            for (int quad = 0; quad < 4; quad++) {
+                if (children[quad] == null) continue;
+                VolumeNode child = children[quad].remove(source);
+                if (child == children[quad]) continue;
+                if (kids == null) kids = children.clone();
+                kids[quad] = child;
             }
+            if (kids == null) return this;
+            return merge(kids);
+        }
+        // collapse back into a leaf if the remaining volumes fit in one
+        private VolumeNode merge(VolumeNode[] kids) {
+            Set<Volume> vols = new HashSet<Volume>();
+            for (VolumeNode child : kids)
+                if ((child != null) && (! child.collect(vols)))
+                    return new VolumeNode(center, bounds, kids, null);
+            if (vols.isEmpty()) return null;
+            Bounds b = null;
+            for (Volume vol : vols) {
+                if (b == null)
+                    b = new Bounds(vol.bounds.min, vol.bounds.max);
+                else
+                    b.expand(vol.bounds);
+            }
+            if (! isLeafSized(b))
+                return new VolumeNode(center, bounds, kids, null);
+            return new VolumeNode(center, b, null, vols);
+        }
+        private boolean collect(Set<Volume> vols) {
+            if (children == null) {
+                vols.addAll(volumes);
+                return vols.size() <= MERGE_LIMIT;
+            }
+            for (VolumeNode child : children)
+                if ((child != null) && (! child.collect(vols))) return false;
+            return true;
         }
         int nodeCount() {
             if (children == null) return 1;
@@ -433,33 +921,38 @@ public final class GateMap {
                 if (child != null) count += child.nodeCount();
             return count;
         }
-        LocalGateImpl getGate(Location loc) {
-            if ((children != null) || (volumes == null)) return null;
-            for (Volume vol : volumes)
-                if (vol.contains(loc)) return vol.gate;
+        LocalGateImpl getGate(int x, int y, int z, int roles) {
+            if (children != null) return null;
+            for (int i = 0; i < leaf.length; i++) {
+                Volume vol = leaf[i];
+                if (((vol.roles & roles) != 0) && ((vol.getRoles(x, y, z) & roles) != 0)) return vol.gate;
+            }
             return null;
         }
-        VolumeNode getNode(Location loc) {
-            if (! bounds.contains(loc)) return null;
-            if (children == null) return this;
-            if (loc.getBlockX() < center.x) {
-                if (loc.getBlockZ() < center.z) {
-                    if (children[0] == null) return null;
-                    return children[0].getNode(loc);
-                } else {
-                    if (children[1] == null) return null;
-                    return children[1].getNode(loc);
-                }
-            } else {
-                if (loc.getBlockZ() < center.z) {
-                    if (children[2] == null) return null;
-                    return children[2].getNode(loc);
-                } else {
-                    if (children[3] == null) return null;
-                    return children[3].getNode(loc);
-                }
+        int getRoles(int x, int y, int z) {
+            if (children != null) return 0;
+            int r = 0;
+            for (int i = 0; i < leaf.length; i++)
+                r |= leaf[i].getRoles(x, y, z);
+            return r;
+        }
+        void lookup(int x, int y, int z, Lookup lookup) {
+            if (children != null) return;
+            for (int i = 0; i < leaf.length; i++) {
+                int r = leaf[i].getRoles(x, y, z);
+                if (r != 0) lookup.add(leaf[i].gate, r);
             }
         }
+        VolumeNode getNode(int x, int y, int z) {
+            VolumeNode node = this;
+            while (node.bounds.contains(x, y, z)) {
+                if (node.children == null) return node;
+                int quad = ((x < node.center.x) ? 0 : 2) + ((z < node.center.z) ? 0 : 1);
+                node = node.children[quad];
+                if (node == null) return null;
+            }
+            return null;
+        }
     }
 
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import com.frdfsnlght.transporter.api.TypeMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes gate files on a background thread.
+ *
+ * Gates hand over a finished TypeMap that isn't shared with anything else.
+ * If a file is saved again before it's written, only the latest contents
+ * are written. Files are written to a temporary file that is synced and
+ * renamed over the old one, so a crash never leaves a partial gate file.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class GateWriter {
+
+    // most files written at once, and the pause between batches
+    private static final int BATCH_SIZE = 100;
+    private static final long BATCH_INTERVAL = 250;
+
+    // marks a file to be deleted
+    private static final TypeMap DELETE = new TypeMap();
+
+    private static final Map<File,TypeMap> pending = new LinkedHashMap<File,TypeMap>();
+
+    // held while writing so flush and the thread don't write the same file at once
+    private static final Object writeLock = new Object();
+
+    private static volatile Thread thread = null;
+
+    public static void write(File file, TypeMap conf) {
+        queue(file, conf);
+    }
+
+    public static void delete(File file) {
+        queue(file, DELETE);
+    }
+
+    // writes everything that's pending before returning
+    public static void flush() {
+        synchronized (writeLock) {
+            while (true) {
+                Map<File,TypeMap> batch = take(Integer.MAX_VALUE);
+                if (batch.isEmpty()) break;
+                writeAll(batch);
+            }
+            GateLog.syncAll();
+        }
+    }
+
+    // stops the writer thread and writes whatever is still pending
+    public static void stop() {
+        Thread t;
+        synchronized (GateWriter.class) {
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            // never interrupt a write, that would close the gate log's channel
+            synchronized (writeLock) {
+                t.interrupt();
+            }
+            try {
+                t.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    private static synchronized void queue(File file, TypeMap conf) {
+        // keep the order of the latest request
+        pending.remove(file);
+        pending.put(file, conf);
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    GateWriter.run();
+                }
+            }, "Transporter gate writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        GateWriter.class.notifyAll();
+    }
+
+    private static synchronized Map<File,TypeMap> take(int max) {
+        Map<File,TypeMap> batch = new LinkedHashMap<File,TypeMap>();
+        for (Iterator<Map.Entry<File,TypeMap>> i = pending.entrySet().iterator(); i.hasNext() && (batch.size() < max); ) {
+            Map.Entry<File,TypeMap> e = i.next();
+            batch.put(e.getKey(), e.getValue());
+            i.remove();
+        }
+        return batch;
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                synchronized (GateWriter.class) {
+                    while (pending.isEmpty())
+                        GateWriter.class.wait();
+                }
+                synchronized (writeLock) {
+                    if (thread != Thread.currentThread()) return;
+                    writeAll(take(BATCH_SIZE));
+                    GateLog.syncAll();
+                }
+                Thread.sleep(BATCH_INTERVAL);
+            } catch (InterruptedException ie) {
+                return;
+            } catch (Throwable t) {
+                Utils.severe(t, "gate writer failed:");
+            }
+        }
+    }
+
+    private static void writeAll(Map<File,TypeMap> batch) {
+        for (Map.Entry<File,TypeMap> e : batch.entrySet()) {
+            File file = e.getKey();
+            GateLog log = GateLog.get(file.getParentFile());
+            if (log != null) {
+                try {
+                    if (e.getValue() == DELETE)
+                        log.delete(file.getName());
+                    else
+                        log.put(file.getName(), e.getValue());
+                } catch (IOException ioe) {
+                    Utils.warning("unable to save gate '%s' to the gate log: %s", file.getName(), ioe.getMessage());
+                }
+                continue;
+            }
+            if (e.getValue() == DELETE) {
+                if (! file.exists()) continue;
+                if (! file.delete())
+                    Utils.warning("unable to delete gate file %s", file.getAbsolutePath());
+                else
+                    Utils.info("deleted gate file %s", file.getAbsolutePath());
+                continue;
+            }
+            try {
+                writeFile(file, e.getValue());
+            } catch (IOException ioe) {
+                Utils.warning("unable to save gate file %s: %s", file.getAbsolutePath(), ioe.getMessage());
+            }
+        }
+    }
+
+    private static void writeFile(File file, TypeMap conf) throws IOException {
+        File parent = file.getParentFile();
+        if (! parent.exists())
+            parent.mkdirs();
+        File tmpFile = new File(parent, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            OutputStreamWriter writer = new OutputStreamWriter(out, "UTF-8");
+            conf.save(writer);
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (! tmpFile.renameTo(file)) {
+            // some platforms won't rename over an existing file
+            if ((! file.delete()) || (! tmpFile.renameTo(file))) {
+                tmpFile.delete();
+                throw new IOException("unable to rename " + tmpFile.getName());
+            }
+        }
+    }
+
+}
@@ -18,14 +18,21 @@ package com.frdfsnlght.transporter;
 import com.frdfsnlght.transporter.GateMap.Volume;
 import com.frdfsnlght.transporter.api.GateException;
 import com.frdfsnlght.transporter.api.TransporterException;
+import com.frdfsnlght.transporter.api.TypeMap;
 import com.frdfsnlght.transporter.api.event.LocalGateCreateEvent;
 import com.frdfsnlght.transporter.api.event.LocalGateDestroyEvent;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.Player;
@@ -37,43 +44,134 @@ import org.bukkit.entity.Player;
  */
 public final class Gates {
 
-    // Gate build blocks that are protected
-    private static final GateMap protectionMap = new GateMap();
+    // Protected build blocks, portals, screens, switches and triggers for
+    // local gates, each volume is tagged with the roles it plays
+    public static final GateMap gateMap = new GateMap();
 
-    // Portal blocks for open, local gates
-    private static final GateMap portalMap = new GateMap();
+    // Indexed by full name. The map is persistent, writers replace it with a
+    // modified version that shares most of the old one, so chat and other
+    // async code can read it from any thread without locking.
+    private static volatile PersistentMap<String,GateImpl> gates = PersistentMap.empty();
 
-    // Gate screens for local gates
-    private static final GateMap screenMap = new GateMap();
-
-    // Gate switches for local gates
-    public static final GateMap switchMap = new GateMap();
-
-    // Gate triggers for local gates
-    public static final GateMap triggerMap = new GateMap();
-
-    // Indexed by full name
-    private static final Map<String,GateImpl> gates = new HashMap<String,GateImpl>();
+    // local gates waiting for one of their chunks to load, and the chunks each is waiting on
+    private static final Map<World,LongObjectMap<List<LocalGateImpl>>> inactiveGates = new HashMap<World,LongObjectMap<List<LocalGateImpl>>>();
+    private static final Map<LocalGateImpl,long[]> inactiveChunks = new HashMap<LocalGateImpl,long[]>();
 
     private static Map<Integer,LocalGateImpl> selectedGates = new HashMap<Integer,LocalGateImpl>();
 
     public static void load(Context ctx) {
         clearLocalGates();
-        for (World world : Global.plugin.getServer().getWorlds())
-            loadGatesForWorld(ctx, world);
+        loadGatesForWorlds(ctx, Global.plugin.getServer().getWorlds());
     }
 
     public static int loadGatesForWorld(Context ctx, World world) {
-        File worldFolder = Worlds.worldPluginFolder(world);
-        File gatesFolder = new File(worldFolder, "gates");
-        if (! gatesFolder.exists()) {
-            Utils.info("no gates found for world '%s'", world.getName());
-            return 0;
+        return loadGatesForWorlds(ctx, Collections.singletonList(world));
+    }
+
+    // The gate files are read and parsed on a pool of threads, then the
+    // gates are created and added here.
+    private static int loadGatesForWorlds(Context ctx, List<World> worlds) {
+        // make sure the files are current
+        GateWriter.flush();
+
+        List<World> fileWorlds = new ArrayList<World>();
+        List<File> files = new ArrayList<File>();
+        List<Callable<TypeMap>> tasks = new ArrayList<Callable<TypeMap>>();
+        List<YAMLCache> caches = new ArrayList<YAMLCache>();
+        List<GateLog> logs = new ArrayList<GateLog>();
+        for (World world : worlds) {
+            File worldFolder = Worlds.worldPluginFolder(world);
+            File gatesFolder = new File(worldFolder, "gates");
+
+            if (Config.getUseGateLog()) {
+                GateLog opened = null;
+                try {
+                    opened = GateLog.open(gatesFolder);
+                } catch (Exception e) {
+                    if (GateLog.isFailed(gatesFolder)) {
+                        ctx.warnLog("unable to read the gate log for world '%s', its gates won't be loaded or saved: %s", world.getName(), e.getMessage());
+                        continue;
+                    }
+                    // the import didn't touch the gate files
+                    ctx.warnLog("unable to import the gate files for world '%s', using them directly: %s", world.getName(), e.getMessage());
+                }
+                if (opened != null) {
+                    final GateLog log = opened;
+                    logs.add(log);
+                    for (final String key : log.getKeys()) {
+                        fileWorlds.add(world);
+                        files.add(new File(gatesFolder, key));
+                        tasks.add(new Callable<TypeMap>() {
+                            @Override
+                            public TypeMap call() {
+                                return log.read(key);
+                            }
+                        });
+                    }
+                    continue;
+                }
+            }
+            try {
+                GateLog.exportFiles(gatesFolder);
+            } catch (Exception e) {
+                ctx.warnLog("unable to export the gate log for world '%s': %s", world.getName(), e.getMessage());
+            }
+            if (GateLog.isFailed(gatesFolder)) {
+                ctx.warnLog("gates for world '%s' won't be loaded or saved until its gate log is fixed", world.getName());
+                continue;
+            }
+
+            if (! gatesFolder.exists()) {
+                Utils.info("no gates found for world '%s'", world.getName());
+                continue;
+            }
+            final YAMLCache cache = YAMLCache.open(gatesFolder);
+            caches.add(cache);
+            for (final File gateFile : Utils.listYAMLFiles(gatesFolder)) {
+                fileWorlds.add(world);
+                files.add(gateFile);
+                tasks.add(new Callable<TypeMap>() {
+                    @Override
+                    public TypeMap call() throws GateException {
+                        return LocalGateImpl.loadConf(gateFile, cache);
+                    }
+                });
+            }
+        }
+        List<Future<TypeMap>> confs = Utils.invokeAll(tasks);
+        for (YAMLCache cache : caches)
+            cache.save();
+        for (GateLog log : logs)
+            log.endLoad();
+
+        return addLoaded(ctx, fileWorlds, files, confs);
+    }
+
+    private static int addLoaded(Context ctx, List<World> fileWorlds, List<File> files, List<Future<TypeMap>> confs) {
+        // the loaded gates' volumes and chat cells are published together
+        gateMap.beginBatch();
+        ChatIndex.beginBatch();
+        try {
+            return addLoadedGates(ctx, fileWorlds, files, confs);
+        } finally {
+            ChatIndex.endBatch();
+            gateMap.endBatch();
         }
+    }
+
+    private static int addLoadedGates(Context ctx, List<World> fileWorlds, List<File> files, List<Future<TypeMap>> confs) {
         int loadedCount = 0;
-        for (File gateFile : Utils.listYAMLFiles(gatesFolder)) {
+        for (int i = 0; i < files.size(); i++) {
+            World world = fileWorlds.get(i);
+            File gateFile = files.get(i);
             try {
-                LocalGateImpl gate = LocalGateImpl.load(world, gateFile);
+                TypeMap conf;
+                try {
+                    conf = confs.get(i).get();
+                } catch (ExecutionException ee) {
+                    throw ee.getCause();
+                }
+                LocalGateImpl gate = LocalGateImpl.load(world, conf);
                 if (gates.containsKey(gate.getFullName())) continue;
                 try {
                     add(gate, false);
@@ -92,16 +190,18 @@ public final class Gates {
     }
 
     public static void save(Context ctx) {
-        Markers.update();
         if (gates.isEmpty()) return;
-        Set<LocalGateImpl> lgates = getLocalGates();
-        for (LocalGateImpl gate : lgates) {
-            gate.save(true);
+        int saved = 0;
+        for (LocalGateImpl gate : getLocalGates()) {
+            // unchanged gates are already on disk
+            if (! gate.dirty) continue;
+            gate.save(false);
+            saved++;
             if ((ctx != null) && Config.getShowGatesSavedMessage())
                 ctx.sendLog("saved '%s'", gate.getLocalName());
         }
         if ((ctx != null) && (! Config.getShowGatesSavedMessage()))
-            ctx.sendLog("saved %s gates", lgates.size());
+            ctx.sendLog("saved %s gates", saved);
     }
 
     public static GateImpl find(Context ctx, String name) {
@@ -115,10 +215,11 @@ public final class Gates {
     }
 
     public static GateImpl find(String name) {
+        PersistentMap<String,GateImpl> gates = Gates.gates;
         if (gates.containsKey(name)) return gates.get(name);
         String lname = name.toLowerCase();
         GateImpl gate = null;
-        for (String key : gates.keySet()) {
+        for (String key : gates.keys()) {
             if (key.toLowerCase().startsWith(lname)) {
                 if (gate == null) gate = gates.get(key);
                 else return null;
@@ -134,7 +235,7 @@ public final class Gates {
     public static void add(GateImpl gate, boolean created) throws GateException {
         if (gates.containsKey(gate.getFullName()))
             throw new GateException("a gate with the same name already exists here");
-        gates.put(gate.getFullName(), gate);
+        putGate(gate);
         for (LocalGateImpl lg : getLocalGates())
             lg.onGateAdded(gate);
         if (gate instanceof LocalGateImpl) {
@@ -143,7 +244,7 @@ public final class Gates {
             Global.plugin.getServer().getPluginManager().callEvent(event);
             for (Server server : Servers.getAll())
                 server.sendGateAdded(lg);
-            Markers.update();
+            Markers.changed(lg.getFullName());
             World world = lg.getWorld();
             if (Config.getAutoAddWorlds())
                 try {
@@ -161,19 +262,19 @@ public final class Gates {
             throw new GateException("gate not found");
         for (LocalGateImpl lg : getLocalGates())
             lg.onGateRemoved(gate);
-        gates.remove(gate.getFullName());
+        removeGate(gate.getFullName());
         if (gate instanceof LocalGateImpl) {
             LocalGateImpl lg = (LocalGateImpl)gate;
             deselectGate(lg);
             lg.save(false);
             for (Server server : Servers.getAll())
                 server.sendGateRemoved(lg);
-            Markers.update();
+            Markers.changed(lg.getFullName());
         }
     }
 
     public static void destroy(GateImpl gate, boolean unbuild) {
-        gates.remove(gate.getFullName());
+        removeGate(gate.getFullName());
         for (LocalGateImpl lg : getLocalGates())
             lg.onGateDestroyed(gate);
         if (gate instanceof LocalGateImpl) {
@@ -184,7 +285,7 @@ public final class Gates {
             lg.destroy(unbuild);
             for (Server server : Servers.getAll())
                 server.sendGateDestroyed(lg);
-            Markers.update();
+            Markers.changed(lg.getFullName());
         }
     }
 
@@ -201,8 +302,8 @@ public final class Gates {
     }
 
     public static void rename(GateImpl gate, String oldFullName) {
-        gates.remove(oldFullName);
-        gates.put(gate.getFullName(), gate);
+        removeGate(oldFullName);
+        putGate(gate);
         for (LocalGateImpl lg : getLocalGates())
             lg.onGateRenamed(gate, oldFullName);
         if (gate instanceof LocalGateImpl) {
@@ -210,7 +311,8 @@ public final class Gates {
             lg.onRenameComplete();
             for (Server server : Servers.getAll())
                 server.sendGateRenamed(oldFullName, gate.getName());
-            Markers.update();
+            Markers.changed(oldFullName);
+            Markers.changed(lg.getFullName());
         }
     }
 
@@ -221,6 +323,63 @@ public final class Gates {
                     remove(lg);
                 } catch (GateException ee) {}
         }
+        inactiveGates.remove(world);
+    }
+
+    // Activates the gate now if one of its chunks is loaded, otherwise when one is.
+    static void activateWhenLoaded(LocalGateImpl gate) {
+        long[] keys = gate.getChunkKeys();
+        World world = gate.getWorld();
+        if (keys != null)
+            for (long key : keys)
+                if (world.isChunkLoaded((int)(key >> 32), (int)key)) {
+                    keys = null;
+                    break;
+                }
+        if (keys == null) {
+            gate.activate();
+            return;
+        }
+        cancelActivation(gate);
+        LongObjectMap<List<LocalGateImpl>> chunks = inactiveGates.get(world);
+        if (chunks == null) {
+            chunks = new LongObjectMap<List<LocalGateImpl>>();
+            inactiveGates.put(world, chunks);
+        }
+        for (long key : keys) {
+            List<LocalGateImpl> chunkGates = chunks.get(key);
+            if (chunkGates == null) {
+                chunkGates = new ArrayList<LocalGateImpl>(1);
+                chunks.put(key, chunkGates);
+            }
+            chunkGates.add(gate);
+        }
+        inactiveChunks.put(gate, keys);
+    }
+
+    static void cancelActivation(LocalGateImpl gate) {
+        long[] keys = inactiveChunks.remove(gate);
+        if (keys == null) return;
+        LongObjectMap<List<LocalGateImpl>> chunks = inactiveGates.get(gate.getWorld());
+        if (chunks == null) return;
+        for (long key : keys) {
+            List<LocalGateImpl> chunkGates = chunks.get(key);
+            if (chunkGates == null) continue;
+            chunkGates.remove(gate);
+            if (chunkGates.isEmpty()) chunks.remove(key);
+        }
+        if (chunks.isEmpty()) inactiveGates.remove(gate.getWorld());
+    }
+
+    public static void onChunkLoaded(Chunk chunk) {
+        LongObjectMap<List<LocalGateImpl>> chunks = inactiveGates.get(chunk.getWorld());
+        if (chunks == null) return;
+        List<LocalGateImpl> chunkGates = chunks.get(GateMap.chunkKey(chunk.getX(), chunk.getZ()));
+        if (chunkGates == null) return;
+        for (LocalGateImpl gate : new ArrayList<LocalGateImpl>(chunkGates)) {
+            cancelActivation(gate);
+            gate.activate();
+        }
     }
 
     public static void removeGatesForServer(Server server) {
@@ -254,71 +413,62 @@ public final class Gates {
 
 
     public static LocalGateImpl findGateForPortal(Location loc) {
-        return portalMap.getGate(loc);
-    }
-
-    public static void addPortalVolume(Volume vol) {
-        portalMap.put(vol);
-    }
-
-    public static void removePortalVolume(LocalGateImpl gate) {
-        portalMap.removeGate(gate);
+        return gateMap.getGate(loc, GateMap.PORTAL);
     }
 
     public static LocalGateImpl findGateForProtection(Location loc) {
-        return protectionMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.PROTECTION);
     }
 
-    public static void addProtectionVolume(Volume vol) {
-        protectionMap.put(vol);
+    public static LocalGateImpl findGateForScreen(Location loc) {
+        return gateMap.getGate(loc, GateMap.SCREEN);
     }
 
-    public static void removeProtectionVolume(LocalGateImpl gate) {
-        protectionMap.removeGate(gate);
+    public static LocalGateImpl findGateForSwitch(Location loc) {
+        return gateMap.getGate(loc, GateMap.SWITCH);
     }
 
-    public static LocalGateImpl findGateForScreen(Location loc) {
-        return screenMap.getGate(loc);
+    public static LocalGateImpl findGateForTrigger(Location loc) {
+        return gateMap.getGate(loc, GateMap.TRIGGER);
     }
 
-    public static void addScreenVolume(Volume vol) {
-        screenMap.put(vol);
+    // returns the first gate playing any of the roles at the block
+    public static LocalGateImpl findGate(World world, int x, int y, int z, int roles) {
+        return gateMap.getGate(world, x, y, z, roles);
     }
 
-    public static void removeScreenVolume(LocalGateImpl gate) {
-        screenMap.removeGate(gate);
+    // returns how far the block is from the nearest volume playing any of the roles, up to limit
+    public static int getDistance(World world, int x, int z, int roles, int limit) {
+        return gateMap.getDistance(world, x, z, roles, limit);
     }
 
-    public static LocalGateImpl findGateForSwitch(Location loc) {
-        return switchMap.getGate(loc);
+    public static LocalGateImpl findNearestGate(World world, int x, int z, int roles, int limit) {
+        return gateMap.getNearestGate(world, x, z, roles, limit);
     }
 
-    public static void addSwitchVolume(Volume vol) {
-        switchMap.put(vol);
+    // returns null if no gate plays any role at the location
+    public static GateMap.Lookup findGates(Location loc) {
+        return gateMap.lookup(loc);
     }
 
-    public static void removeSwitchVolume(LocalGateImpl gate) {
-        switchMap.removeGate(gate);
+    public static GateMap.Lookup findGates(World world, int x, int y, int z) {
+        return gateMap.lookup(world, x, y, z);
     }
 
-    public static LocalGateImpl findGateForTrigger(Location loc) {
-        return triggerMap.getGate(loc);
+    public static void addVolume(Volume vol) {
+        gateMap.put(vol);
     }
 
-    public static void addTriggerVolume(Volume vol) {
-        triggerMap.put(vol);
+    public static void removeVolumes(LocalGateImpl gate) {
+        gateMap.removeGate(gate);
     }
 
-    public static void removeTriggerVolume(LocalGateImpl gate) {
-        triggerMap.removeGate(gate);
+    public static void removeVolumes(LocalGateImpl gate, int roles) {
+        gateMap.removeGate(gate, roles);
     }
 
     public static void dumpMaps() {
-        Utils.debug("portalMap=%s", portalMap);
-        Utils.debug("protectionMap=%s", protectionMap);
-        Utils.debug("screenMap=%s", screenMap);
-        Utils.debug("switchMap=%s", switchMap);
-        Utils.debug("triggerMap=%s", triggerMap);
+        Utils.debug("gateMap=%s", gateMap);
     }
 
 
@@ -336,10 +486,18 @@ public final class Gates {
                 selectedGates.remove(playerId);
     }
 
-    private static void clearLocalGates() {
-        for (GateImpl gate : new HashSet<GateImpl>(gates.values()))
-            if (gate instanceof GateImpl)
-                gates.remove(gate.getFullName());
+    private static synchronized void clearLocalGates() {
+        gates = PersistentMap.empty();
+        inactiveGates.clear();
+        inactiveChunks.clear();
+    }
+
+    private static synchronized void putGate(GateImpl gate) {
+        gates = gates.plus(gate.getFullName(), gate);
+    }
+
+    private static synchronized void removeGate(String fullName) {
+        gates = gates.minus(fullName);
     }
 
 }
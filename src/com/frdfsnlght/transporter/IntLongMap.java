@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+/**
+ * An open addressing map from primitive ints to primitive longs.
+ *
+ * Zero values aren't allowed since a zero value marks an empty slot, and
+ * get returns zero for a missing key. The slots can be walked directly so
+ * a table can be swept a little at a time.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class IntLongMap {
+
+    private static final int MIN_CAPACITY = 8;
+
+    private int[] keys;
+    private long[] values;
+    private int size = 0;
+
+    public IntLongMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public IntLongMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (expected * 2)) capacity <<= 1;
+        keys = new int[capacity];
+        values = new long[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != 0;
+    }
+
+    public long get(int key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        long v;
+        while ((v = values[i]) != 0) {
+            if (keys[i] == key) return v;
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    public long put(int key, long value) {
+        if (value == 0)
+            throw new IllegalArgumentException("zero values are not allowed");
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != 0) {
+            if (keys[i] == key) {
+                long old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        // keep the load factor under 1/2 so probe runs stay short
+        if ((size * 2) > keys.length)
+            resize(keys.length * 2);
+        return 0;
+    }
+
+    public long remove(int key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != 0) {
+            if (keys[i] == key) break;
+            i = (i + 1) & mask;
+        }
+        if (values[i] == 0) return 0;
+        long old = values[i];
+        values[i] = 0;
+        size--;
+
+        // shift back any entries that probed past the slot we just emptied
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == 0) break;
+            int k = hash(keys[j]) & mask;
+            if ((i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j))) continue;
+            keys[i] = keys[j];
+            values[i] = values[j];
+            values[j] = 0;
+            i = j;
+        }
+        return old;
+    }
+
+    public void clear() {
+        for (int i = 0; i < values.length; i++)
+            values[i] = 0;
+        size = 0;
+    }
+
+    // number of slots, for walking them with keyAt and valueAt
+    public int capacity() {
+        return keys.length;
+    }
+
+    // only meaningful if valueAt returns something other than zero
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    // zero if the slot is empty
+    public long valueAt(int slot) {
+        return values[slot];
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[capacity];
+        values = new long[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] == 0) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (values[i] != 0)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private static int hash(int key) {
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        return key;
+    }
+
+}
@@ -251,30 +251,33 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
     @Override
     protected void onAdd() {
         if (portalOpen)
-            Gates.addPortalVolume(getPortalVolume());
+            Gates.addVolume(getPortalVolume());
         if (protect && box)
-            Gates.addProtectionVolume(getBoxVolume());
+            Gates.addVolume(getBoxVolume());
     }
 
     @Override
     protected void onRemove() {
-        Gates.removePortalVolume(this);
+        Gates.removeVolumes(this);
     }
 
     @Override
     protected void onDestroy(boolean unbuild) {
-        Gates.removePortalVolume(this);
+        Gates.removeVolumes(this);
         if (unbuild && box) hideBox();
     }
 
     @Override
     protected void onOpen() {
-        Gates.addPortalVolume(getPortalVolume());
+        // an inactive gate gets its volumes in onAdd()
+        if (! isActive()) return;
+        Gates.removeVolumes(this, GateMap.PORTAL);
+        Gates.addVolume(getPortalVolume());
     }
 
     @Override
     protected void onClose() {
-        Gates.removePortalVolume(this);
+        Gates.removeVolumes(this, GateMap.PORTAL);
     }
 
     @Override
@@ -303,6 +306,23 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
         }
     }
 
+    // very large areas are activated right away
+    private static final int MAX_CHUNKS = 64;
+
+    @Override
+    protected long[] getChunkKeys() {
+        Bounds bounds = new Bounds(p1, p2);
+        int minX = bounds.min.x >> 4, minZ = bounds.min.z >> 4;
+        int maxX = bounds.max.x >> 4, maxZ = bounds.max.z >> 4;
+        if (((long)(maxX - minX + 1) * (maxZ - minZ + 1)) > MAX_CHUNKS) return null;
+        long[] keys = new long[(maxX - minX + 1) * (maxZ - minZ + 1)];
+        int i = 0;
+        for (int cx = minX; cx <= maxX; cx++)
+            for (int cz = minZ; cz <= maxZ; cz++)
+                keys[i++] = GateMap.chunkKey(cx, cz);
+        return keys;
+    }
+
     @Override
     protected void calculateCenter() {
         double cx = (p1.getBlockX() + p2.getBlockX()) / 2;
@@ -351,9 +371,9 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
         p1 = l1;
         p2 = l2;
         if (box) showBox();
-        if (portalOpen) {
-            Gates.removePortalVolume(this);
-            Gates.addPortalVolume(getPortalVolume());
+        if (portalOpen && isActive()) {
+            Gates.removeVolumes(this, GateMap.PORTAL);
+            Gates.addVolume(getPortalVolume());
         }
     }
 
@@ -389,7 +409,7 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
     }
 
     private Volume getPortalVolume() {
-        Volume vol = new Volume(this);
+        Volume vol = new Volume(this, GateMap.PORTAL);
         vol.setBounds(new Point(p1), new Point(p2));
         return vol;
     }
@@ -409,14 +429,18 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
 
     private void hideBox() {
         if (boxBlocks == null) return;
+        BlockQueue.Job job = new BlockQueue.Job(null);
         for (SavedBlock b : boxBlocks)
-            b.restore();
+            job.add(b.getLocation(), b.getBlock());
+        BlockQueue.submit(BlockQueue.BOX, job);
         boxBlocks = null;
     }
 
     private void showBox() {
         if (boxBlocks != null) hideBox();
         boxBlocks = new ArrayList<SavedBlock>();
+        BuildableBlock boxBlock = new BuildableBlock(boxMaterial.getId(), (byte)0, true);
+        BlockQueue.Job job = new BlockQueue.Job(null);
         Bounds bounds = new Bounds(p1, p2);
         Location l = bounds.min.toLocation(world);
         //Set<Location> hitLocations = new HashSet<Location>();
@@ -431,15 +455,16 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
                         (y == bounds.min.y) || (y == bounds.max.y) ||
                         (z == bounds.min.z) || (z == bounds.max.z)) {
                         boxBlocks.add(new SavedBlock(l));
-                        l.getBlock().setType(boxMaterial);
+                        job.add(l, boxBlock);
                     }
                 }
             }
         }
+        BlockQueue.submit(BlockQueue.BOX, job);
     }
 
     private Volume getBoxVolume() {
-        Volume vol = new Volume(this);
+        Volume vol = new Volume(this, GateMap.PROTECTION);
         Bounds bounds = new Bounds(p1, p2);
         Point p = bounds.min.clone();
         for (int x = bounds.min.x; x <= bounds.max.x; x++) {
@@ -571,10 +596,9 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
         box = b;
         dirty = true;
         setCorners(p1, p2);
-        if (protect && box)
-            Gates.addProtectionVolume(getBoxVolume());
-        else if (protect)
-            Gates.removeProtectionVolume(this);
+        Gates.removeVolumes(this, GateMap.PROTECTION);
+        if (protect && box && isActive())
+            Gates.addVolume(getBoxVolume());
     }
 
     @Override
@@ -592,10 +616,9 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
     public void onOptionSet(Context ctx, String name, String value) {
         super.onOptionSet(ctx, name, value);
         if (name.equals("protect")) {
-            if (protect && box)
-                Gates.addProtectionVolume(getBoxVolume());
-            else
-                Gates.removeProtectionVolume(this);
+            Gates.removeVolumes(this, GateMap.PROTECTION);
+            if (protect && box && isActive())
+                Gates.addVolume(getBoxVolume());
         }
     }
 
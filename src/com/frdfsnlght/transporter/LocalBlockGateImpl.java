@@ -16,7 +16,6 @@
 package com.frdfsnlght.transporter;
 
 import com.frdfsnlght.transporter.api.TypeMap;
-import com.frdfsnlght.transporter.GateMap.Point;
 import com.frdfsnlght.transporter.GateMap.Volume;
 import com.frdfsnlght.transporter.api.GateException;
 import com.frdfsnlght.transporter.api.GateType;
@@ -45,6 +44,8 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
 
     private static final Pattern NEWLINE_PATTERN = Pattern.compile("\\\\n");
 
+    private static final BuildableBlock AIR = new BuildableBlock(0, (byte)0, false);
+
     private static final Set<String> OPTIONS = new HashSet<String>(LocalGateImpl.BASEOPTIONS);
 
     static {
@@ -56,6 +57,22 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
 
     private List<GateBlock> blocks;
     private List<SavedBlock> savedBlocks = null;
+    // whether the portal blocks in the world are open, which lags behind
+    // portalOpen while the gate isn't active
+    private boolean portalBlocksOpen = false;
+
+    // blocks keyed by packed coordinates, and the blocks playing each role,
+    // built once the block list is known
+    private LongObjectMap<GateBlock> blockIndex;
+    private GateBlock[] spawnBlocks;
+    private GateBlock[] portalBlocks;
+    private GateBlock[] buildableBlocks;
+    private GateBlock[] openableBlocks;
+    private GateBlock[] screenBlocks;
+    private GateBlock[] switchBlocks;
+    private GateBlock[] triggerBlocks;
+    private GateBlock[] sendLightningBlocks;
+    private GateBlock[] receiveLightningBlocks;
 
     // creation from file
     public LocalBlockGateImpl(World world, TypeMap conf) throws GateException {
@@ -93,7 +110,9 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
             }
             if (savedBlocks.isEmpty()) savedBlocks = null;
         }
+        portalBlocksOpen = portalOpen;
 
+        indexBlocks();
         calculateCenter();
         validate();
     }
@@ -161,6 +180,7 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
 
         this.blocks = tDesign.getBlocks();
 
+        indexBlocks();
         calculateCenter();
         validate();
         generateFile();
@@ -175,10 +195,7 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
 
     @Override
     public Location getSpawnLocation(Location fromLocation, BlockFace fromDirection) {
-        List<GateBlock> gbs = new ArrayList<GateBlock>();
-        for (GateBlock gb : blocks)
-            if (gb.getDetail().isSpawn()) gbs.add(gb);
-        GateBlock block = gbs.get((new Random()).nextInt(gbs.size()));
+        GateBlock block = spawnBlocks[(new Random()).nextInt(spawnBlocks.length)];
         Location toLocation = block.getLocation().clone();
         toLocation.add(0.5, 0, 0.5);
         toLocation.setYaw(block.getDetail().getSpawn().calculateYaw(fromLocation.getYaw(), fromDirection, getDirection()));
@@ -188,13 +205,8 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
 
     @Override
     public void onSend(Entity entity) {
-        List<GateBlock> gbs = new ArrayList<GateBlock>();
-        for (GateBlock gb : blocks) {
-            if (gb.getDetail().getSendLightningMode() != LightningMode.NONE)
-                gbs.add(gb);
-        }
-        if (gbs.isEmpty()) return;
-        GateBlock block = gbs.get((new Random()).nextInt(gbs.size()));
+        if (sendLightningBlocks.length == 0) return;
+        GateBlock block = sendLightningBlocks[(new Random()).nextInt(sendLightningBlocks.length)];
         switch (block.getDetail().getSendLightningMode()) {
             case NORMAL:
                 world.strikeLightning(block.getLocation());
@@ -207,13 +219,8 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
 
     @Override
     public void onReceive(Entity entity) {
-        List<GateBlock> gbs = new ArrayList<GateBlock>();
-        for (GateBlock gb : blocks) {
-            if (gb.getDetail().getReceiveLightningMode() != LightningMode.NONE)
-                gbs.add(gb);
-        }
-        if (gbs.isEmpty()) return;
-        GateBlock block = gbs.get((new Random()).nextInt(gbs.size()));
+        if (receiveLightningBlocks.length == 0) return;
+        GateBlock block = receiveLightningBlocks[(new Random()).nextInt(receiveLightningBlocks.length)];
         switch (block.getDetail().getReceiveLightningMode()) {
             case NORMAL:
                 world.strikeLightning(block.getLocation());
@@ -229,19 +236,26 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
         GateBlock gb = getGateBlock(loc);
         if ((gb != null) &&
             gb.getDetail().isBuildable() &&
-            ((! portalOpen) || (! gb.getDetail().isPortal())))
+            ((! portalBlocksOpen) || (! gb.getDetail().isPortal())))
             gb.getDetail().getBuildBlock().build(loc);
         updateScreens();
     }
 
     @Override
     public void rebuild() {
-        for (GateBlock gb : blocks) {
-            if (! gb.getDetail().isBuildable()) continue;
-            if (portalOpen && gb.getDetail().isPortal()) continue;
-            gb.getDetail().getBuildBlock().build(gb.getLocation());
+        BlockQueue.Job job = new BlockQueue.Job(new BlockQueue.Callback() {
+            @Override
+            public void onProgress(int done, int total) {}
+            @Override
+            public void onComplete() {
+                updateScreens();
+            }
+        });
+        for (GateBlock gb : buildableBlocks) {
+            if (portalBlocksOpen && gb.getDetail().isPortal()) continue;
+            job.add(gb.getLocation(), gb.getDetail().getBuildBlock());
         }
-        updateScreens();
+        BlockQueue.submit(BlockQueue.BUILD, job);
     }
 
     @Override
@@ -256,49 +270,43 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
 
     @Override
     protected void onAdd() {
-        Gates.addScreenVolume(getScreenVolume());
-        Gates.addTriggerVolume(getTriggerVolume());
-        Gates.addSwitchVolume(getSwitchVolume());
-        if (portalOpen)
-            Gates.addPortalVolume(getPortalVolume());
-        if (protect)
-            Gates.addProtectionVolume(getBuildVolume());
+        updateVolume();
+        // catch up with opens and closes that happened while inactive
+        if (portalOpen != portalBlocksOpen) {
+            if (portalOpen)
+                openPortal();
+            else
+                closePortal();
+        } else
+            updatePortalVolume();
         updateScreens();
     }
 
     @Override
     protected void onRemove() {
-        Gates.removePortalVolume(this);
-        Gates.removeProtectionVolume(this);
-        Gates.removeScreenVolume(this);
-        Gates.removeTriggerVolume(this);
-        Gates.removeSwitchVolume(this);
+        Gates.removeVolumes(this);
     }
 
     @Override
     protected void onDestroy(boolean unbuild) {
-        Gates.removePortalVolume(this);
-        Gates.removeProtectionVolume(this);
-        Gates.removeScreenVolume(this);
-        Gates.removeTriggerVolume(this);
-        Gates.removeSwitchVolume(this);
+        if (portalBlocksOpen) closePortal();
+        Gates.removeVolumes(this);
         if (unbuild) {
-            for (GateBlock gb : blocks) {
-                if (! gb.getDetail().isBuildable()) continue;
-                Block b = gb.getLocation().getBlock();
-                b.setTypeIdAndData(0, (byte)0, false);
-            }
+            BlockQueue.Job job = new BlockQueue.Job(null);
+            for (GateBlock gb : buildableBlocks)
+                job.add(gb.getLocation(), AIR);
+            BlockQueue.submit(BlockQueue.BUILD, job);
         }
     }
 
     @Override
     protected void onOpen() {
-        openPortal();
+        if (isActive()) openPortal();
     }
 
     @Override
     protected void onClose() {
-        closePortal();
+        if (isActive()) closePortal();
     }
 
     @Override
@@ -329,6 +337,20 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
         }
     }
 
+    @Override
+    protected long[] getChunkKeys() {
+        Set<Long> keys = new HashSet<Long>();
+        for (GateBlock gb : blocks) {
+            Location loc = gb.getLocation();
+            keys.add(GateMap.chunkKey(loc.getBlockX() >> 4, loc.getBlockZ() >> 4));
+        }
+        long[] out = new long[keys.size()];
+        int i = 0;
+        for (long key : keys)
+            out[i++] = key;
+        return out;
+    }
+
     @Override
     protected void calculateCenter() {
         double cx = 0, cy = 0, cz = 0;
@@ -359,67 +381,90 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
     }
 
     public GateBlock getGateBlock(Location loc) {
-        for (GateBlock gb : blocks) {
-            Location gbLoc = gb.getLocation();
-            if ((loc.getBlockX() == gbLoc.getBlockX()) &&
-                (loc.getBlockY() == gbLoc.getBlockY()) &&
-                (loc.getBlockZ() == gbLoc.getBlockZ())) return gb;
-        }
-        return null;
+        return getGateBlock(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
     }
 
-    private Volume getBuildVolume() {
-        Volume vol = new Volume(this);
-        for (GateBlock gb : blocks) {
-            if (! gb.getDetail().isBuildable()) continue;
-            vol.addPoint(new Point(gb.getLocation()));
-        }
-        return vol;
+    public GateBlock getGateBlock(int x, int y, int z) {
+        return blockIndex.get(BlockKeyMap.key(x, y, z));
     }
 
-    private Volume getScreenVolume() {
-        Volume vol = new Volume(this);
+    private void indexBlocks() {
+        blockIndex = new LongObjectMap<GateBlock>(blocks.size());
+        List<GateBlock> spawns = new ArrayList<GateBlock>();
+        List<GateBlock> portals = new ArrayList<GateBlock>();
+        List<GateBlock> buildables = new ArrayList<GateBlock>();
+        List<GateBlock> openables = new ArrayList<GateBlock>();
+        List<GateBlock> screens = new ArrayList<GateBlock>();
+        List<GateBlock> switches = new ArrayList<GateBlock>();
+        List<GateBlock> triggers = new ArrayList<GateBlock>();
+        List<GateBlock> sendLightnings = new ArrayList<GateBlock>();
+        List<GateBlock> receiveLightnings = new ArrayList<GateBlock>();
         for (GateBlock gb : blocks) {
-            if (! gb.getDetail().isScreen()) continue;
-            vol.addPoint(new Point(gb.getLocation()));
+            Location loc = gb.getLocation();
+            blockIndex.put(BlockKeyMap.key(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ()), gb);
+            DesignBlockDetail detail = gb.getDetail();
+            if (detail.isSpawn()) spawns.add(gb);
+            if (detail.isPortal()) portals.add(gb);
+            if (detail.isBuildable()) buildables.add(gb);
+            if (detail.isOpenable()) openables.add(gb);
+            if (detail.isScreen()) screens.add(gb);
+            if (detail.isSwitch()) switches.add(gb);
+            if (detail.isTrigger()) triggers.add(gb);
+            if (detail.getSendLightningMode() != LightningMode.NONE) sendLightnings.add(gb);
+            if (detail.getReceiveLightningMode() != LightningMode.NONE) receiveLightnings.add(gb);
         }
+        spawnBlocks = spawns.toArray(new GateBlock[spawns.size()]);
+        portalBlocks = portals.toArray(new GateBlock[portals.size()]);
+        buildableBlocks = buildables.toArray(new GateBlock[buildables.size()]);
+        openableBlocks = openables.toArray(new GateBlock[openables.size()]);
+        screenBlocks = screens.toArray(new GateBlock[screens.size()]);
+        switchBlocks = switches.toArray(new GateBlock[switches.size()]);
+        triggerBlocks = triggers.toArray(new GateBlock[triggers.size()]);
+        sendLightningBlocks = sendLightnings.toArray(new GateBlock[sendLightnings.size()]);
+        receiveLightningBlocks = receiveLightnings.toArray(new GateBlock[receiveLightnings.size()]);
+    }
+
+    // One volume covers every block with a role other than portal, tagged with
+    // the roles it plays. The portal has its own so opening and closing only
+    // changes that one.
+    private Volume getVolume() {
+        Volume vol = new Volume(this);
+        if (protect)
+            addPoints(vol, buildableBlocks, GateMap.PROTECTION);
+        addPoints(vol, screenBlocks, GateMap.SCREEN);
+        addPoints(vol, switchBlocks, GateMap.SWITCH);
+        addPoints(vol, triggerBlocks, GateMap.TRIGGER);
         return vol;
     }
 
-    private Volume getTriggerVolume() {
+    private Volume getPortalVolume() {
         Volume vol = new Volume(this);
-        for (GateBlock gb : blocks) {
-            if (! gb.getDetail().isTrigger()) continue;
-            vol.addPoint(new Point(gb.getLocation()));
-        }
+        addPoints(vol, portalBlocks, GateMap.PORTAL);
         return vol;
     }
 
-    private Volume getSwitchVolume() {
-        Volume vol = new Volume(this);
-        for (GateBlock gb : blocks) {
-            if (! gb.getDetail().isSwitch()) continue;
-            vol.addPoint(new Point(gb.getLocation()));
+    private void addPoints(Volume vol, GateBlock[] gbs, int role) {
+        for (GateBlock gb : gbs) {
+            Location loc = gb.getLocation();
+            vol.addPoint(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), role);
         }
-        return vol;
     }
 
-    private Volume getPortalVolume() {
-        Volume vol = new Volume(this);
-        for (GateBlock gb : blocks) {
-            if (! gb.getDetail().isPortal()) continue;
-            vol.addPoint(new Point(gb.getLocation()));
-        }
-        return vol;
+    private void updateVolume() {
+        Gates.removeVolumes(this, ~GateMap.PORTAL);
+        // removed and destroyed gates don't get their volume back
+        if (Gates.get(getFullName()) != this) return;
+        Gates.addVolume(getVolume());
     }
 
-    private void updateScreens() {
-        Set<GateBlock> screens = new HashSet<GateBlock>();
-        for (GateBlock gb : blocks) {
-            if (! gb.getDetail().isScreen()) continue;
-            screens.add(gb);
-        }
-        if (screens.isEmpty()) return;
+    private void updatePortalVolume() {
+        Gates.removeVolumes(this, GateMap.PORTAL);
+        if ((! portalOpen) || (Gates.get(getFullName()) != this)) return;
+        Gates.addVolume(getPortalVolume());
+    }
+
+    void updateScreens() {
+        if ((screenBlocks.length == 0) || (! isActive())) return;
 
         String format;
         GateImpl toGate = null;
@@ -469,7 +514,7 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
             lines.addAll(Arrays.asList(NEWLINE_PATTERN.split(format)));
         }
 
-        for (GateBlock gb : screens) {
+        for (GateBlock gb : screenBlocks) {
             Block block = gb.getLocation().getBlock();
             BlockState sign = block.getState();
             if (! (sign instanceof Sign)) continue;
@@ -485,32 +530,43 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
 
     private void openPortal() {
         savedBlocks = new ArrayList<SavedBlock>();
-        for (GateBlock gb : blocks) {
-            if (! gb.getDetail().isOpenable()) continue;
+        BlockQueue.Job job = new BlockQueue.Job(new BlockQueue.Callback() {
+            @Override
+            public void onProgress(int done, int total) {}
+            @Override
+            public void onComplete() {
+                // the portal only sends once all its blocks are in place
+                updatePortalVolume();
+            }
+        });
+        for (GateBlock gb : openableBlocks) {
             if (restoreOnClose)
                 savedBlocks.add(new SavedBlock(gb.getLocation()));
-            gb.getDetail().getOpenBlock().build(gb.getLocation());
+            job.add(gb.getLocation(), gb.getDetail().getOpenBlock());
         }
         if (savedBlocks.isEmpty()) savedBlocks = null;
-        Gates.addPortalVolume(getPortalVolume());
+        BlockQueue.submit(BlockQueue.PORTAL, job);
+        portalBlocksOpen = true;
         dirty = true;
     }
 
     private void closePortal() {
+        BlockQueue.Job job = new BlockQueue.Job(null);
         if (savedBlocks != null) {
             for (SavedBlock b : savedBlocks)
-                b.restore();
+                job.add(b.getLocation(), b.getBlock());
             savedBlocks = null;
         } else {
-            for (GateBlock gb : blocks) {
-                if (! gb.getDetail().isOpenable()) continue;
+            for (GateBlock gb : openableBlocks) {
                 if (gb.getDetail().isBuildable())
-                    gb.getDetail().getBuildBlock().build(gb.getLocation());
+                    job.add(gb.getLocation(), gb.getDetail().getBuildBlock());
                 else
-                gb.getLocation().getBlock().setTypeIdAndData(0, (byte)0, false);
+                    job.add(gb.getLocation(), AIR);
             }
         }
-        Gates.removePortalVolume(this);
+        BlockQueue.submit(BlockQueue.PORTAL, job);
+        portalBlocksOpen = false;
+        updatePortalVolume();
         dirty = true;
     }
 
@@ -536,12 +592,8 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
     @Override
     public void onOptionSet(Context ctx, String name, String value) {
         super.onOptionSet(ctx, name, value);
-        if (name.equals("protect")) {
-            if (protect)
-                Gates.addProtectionVolume(getBuildVolume());
-            else
-                Gates.removeProtectionVolume(this);
-        }
+        if (name.equals("protect"))
+            updateVolume();
     }
 
     /* End options */
@@ -49,14 +49,25 @@ import org.bukkit.util.Vector;
 public abstract class LocalGateImpl extends GateImpl implements LocalGate, OptionsListener {
 
     public static LocalGateImpl load(World world, File file) throws GateException {
+        return load(world, loadConf(file, null));
+    }
+
+    // only reads the file, so it's safe to call off the main thread
+    public static TypeMap loadConf(File file, YAMLCache cache) throws GateException {
         if (! file.exists())
             throw new GateException("%s not found", file.getAbsolutePath());
         if (! file.isFile())
             throw new GateException("%s is not a file", file.getAbsolutePath());
         if (! file.canRead())
             throw new GateException("unable to read %s", file.getAbsoluteFile());
+        if (cache != null)
+            return cache.load(file);
         TypeMap conf = new TypeMap(file);
         conf.load();
+        return conf;
+    }
+
+    public static LocalGateImpl load(World world, TypeMap conf) throws GateException {
         String typeStr = conf.getString("type", "BLOCK");
         GateType type;
         try {
@@ -217,6 +228,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     protected String outgoing = null;
 
     protected boolean dirty = false;
+    private boolean active = false;
     protected boolean portalOpen = false;
     protected long portalOpenTime = 0;
     protected Options options = new Options(this, BASEOPTIONS, "trp.gate", this);
@@ -464,6 +476,10 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     protected abstract void onDestroy(boolean unbuild);
     protected abstract void onAdd();
     protected abstract void onRemove();
+
+    // Returns the chunks the gate is in, packed with GateMap.chunkKey, or
+    // null if the gate should be activated as soon as it's added.
+    protected abstract long[] getChunkKeys();
     protected abstract void onOpen();
     protected abstract void onClose();
     protected abstract void onNameChanged();
@@ -556,25 +572,42 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     // End interfaces and implementations
 
     public void onRenameComplete() {
-        file.delete();
+        GateWriter.delete(file);
         generateFile();
         save(true);
         onNameChanged();
     }
 
+    // Called when one of the gate's chunks is loaded, or right away if one
+    // already is. Until then the gate has no volumes and its screens aren't
+    // touched, so gates in chunks nobody visits stay cheap.
+    void activate() {
+        if (active) return;
+        active = true;
+        onAdd();
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
     public void onGateAdded(GateImpl gate) {
-        if (gate == this)
-            onAdd();
-        else {
+        if (gate == this) {
+            Gates.activateWhenLoaded(this);
+            ChatIndex.update(this);
+        } else {
             if ((outgoing != null) && outgoing.equals(gate.getFullName()))
                 onDestinationChanged();
         }
     }
 
     public void onGateRemoved(GateImpl gate) {
-        if (gate == this)
+        if (gate == this) {
+            Gates.cancelActivation(this);
+            active = false;
             onRemove();
-        else {
+            ChatIndex.remove(this);
+        } else {
             String gateName = gate.getFullName();
             if (gateName.equals(outgoing)) {
                 //outgoing = null;
@@ -608,6 +641,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         if (links.contains(oldFullName)) {
             links.set(links.indexOf(oldFullName), newName);
             dirty = true;
+            Markers.changed(getFullName());
         }
         if (oldFullName.equals(outgoing)) {
             outgoing = newName;
@@ -623,12 +657,12 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
 
     public void destroy(boolean unbuild) {
         close();
-        if (! file.delete())
-            Utils.warning("unable to delete gate file %s", file.getAbsolutePath());
-        else
-            Utils.info("deleted gate file %s", file.getAbsolutePath());
+        GateWriter.delete(file);
         file = null;
+        Gates.cancelActivation(this);
+        active = false;
         onDestroy(unbuild);
+        ChatIndex.remove(this);
     }
 
     public boolean isOpen() {
@@ -726,7 +760,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         conf.set("linkServerFormat", linkServerFormat);
 
         conf.set("multiLink", multiLink);
-        conf.set("links", links);
+        conf.set("links", new ArrayList<String>(links));
         conf.set("pins", new ArrayList<String>(pins));
         conf.set("bannedItems", new ArrayList<String>(bannedItems));
         conf.set("allowedItems", new ArrayList<String>(allowedItems));
@@ -789,10 +823,8 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
 
         onSave(conf);
 
-        File parent = file.getParentFile();
-        if (! parent.exists())
-            parent.mkdirs();
-        conf.save();
+        // conf doesn't share anything with the gate so it can be written later
+        GateWriter.write(file, conf);
     }
 
     protected void validate() throws GateException {
@@ -1044,6 +1076,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     public void setSendChat(boolean b) {
         sendChat = b;
         dirty = true;
+        ChatIndex.update(this);
     }
 
     @Override
@@ -1093,6 +1126,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     public void setSendChatDistance(int i) {
         sendChatDistance = i;
         dirty = true;
+        ChatIndex.update(this);
     }
 
     @Override
@@ -1614,6 +1648,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
     @Override
     public void onOptionSet(Context ctx, String name, String value) {
         ctx.send("option '%s' set to '%s' for gate '%s'", name, value, getName(ctx));
+        Markers.changed(getFullName());
     }
 
     @Override
@@ -1734,6 +1769,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
             outgoing = link;
         onDestinationChanged();
         dirty = true;
+        Markers.changed(getFullName());
         return true;
     }
 
@@ -1757,6 +1793,7 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         onDestinationChanged();
         closeIfAllowed();
         dirty = true;
+        Markers.changed(getFullName());
         return true;
     }
 
@@ -2142,16 +2179,21 @@ public abstract class LocalGateImpl extends GateImpl implements LocalGate, Optio
         if (! sendChat) return false;
         if (location.getWorld() != world) return false;
         if (sendChatDistance <= 0) return true;
-        Vector there = new Vector(location.getX(), location.getY(), location.getZ());
-        return (there.distance(center) <= sendChatDistance);
+        return distanceSquared(location) <= ((double)sendChatDistance * sendChatDistance);
     }
 
     public boolean isInChatReceiveProximity(Location location) {
         if (! receiveChat) return false;
         if (location.getWorld() != world) return false;
         if (receiveChatDistance <= 0) return true;
-        Vector there = new Vector(location.getX(), location.getY(), location.getZ());
-        return (there.distance(center) <= receiveChatDistance);
+        return distanceSquared(location) <= ((double)receiveChatDistance * receiveChatDistance);
+    }
+
+    private double distanceSquared(Location location) {
+        double dx = location.getX() - center.getX();
+        double dy = location.getY() - center.getY();
+        double dz = location.getZ() - center.getZ();
+        return (dx * dx) + (dy * dy) + (dz * dz);
     }
 
     protected void generateFile() {
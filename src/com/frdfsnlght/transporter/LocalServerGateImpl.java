@@ -85,6 +85,11 @@ public final class LocalServerGateImpl extends LocalGateImpl implements LocalSer
     @Override
     protected void onRemove() {}
 
+    @Override
+    protected long[] getChunkKeys() {
+        return null;
+    }
+
     @Override
     protected void onDestroy(boolean unbuild) {}
 
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An open addressing map from primitive longs to objects.
+ *
+ * Used for packed block and chunk coordinates so lookups don't box the key.
+ * Null values aren't allowed since a null value marks an empty slot.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class LongObjectMap<V> {
+
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    public LongObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongObjectMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (expected * 2)) capacity <<= 1;
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    // shallow copy, the values themselves are shared
+    public LongObjectMap(LongObjectMap<V> map) {
+        keys = map.keys.clone();
+        values = map.values.clone();
+        size = map.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        Object v;
+        while ((v = values[i]) != null) {
+            if (keys[i] == key) return (V)v;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("null values are not allowed");
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                V old = (V)values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        // keep the load factor under 1/2 so probe runs stay short
+        if ((size * 2) > keys.length)
+            resize(keys.length * 2);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) break;
+            i = (i + 1) & mask;
+        }
+        if (values[i] == null) return null;
+        V old = (V)values[i];
+        values[i] = null;
+        size--;
+
+        // shift back any entries that probed past the slot we just emptied
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) break;
+            int k = hash(keys[j]) & mask;
+            if ((i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j))) continue;
+            keys[i] = keys[j];
+            values[i] = values[j];
+            values[j] = null;
+            i = j;
+        }
+        return old;
+    }
+
+    public void clear() {
+        for (int i = 0; i < values.length; i++)
+            values[i] = null;
+        size = 0;
+    }
+
+    public long[] keys() {
+        long[] out = new long[size];
+        int j = 0;
+        for (int i = 0; i < values.length; i++)
+            if (values[i] != null) out[j++] = keys[i];
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> out = new ArrayList<V>(size);
+        for (int i = 0; i < values.length; i++)
+            if (values[i] != null) out.add((V)values[i]);
+        return out;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] == null) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (values[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+}
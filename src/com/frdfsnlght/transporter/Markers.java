@@ -15,12 +15,21 @@
  */
 package com.frdfsnlght.transporter;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.util.Vector;
 import org.dynmap.DynmapAPI;
@@ -30,6 +39,12 @@ import org.dynmap.markers.MarkerIcon;
 import org.dynmap.markers.MarkerSet;
 
 /**
+ * Keeps the dynmap markers and the exported gates file up to date.
+ *
+ * Gates report changes by name. Changed gates are looked at a batch per
+ * tick, and only gates whose marker or exported entry actually changed
+ * touch dynmap. Once everything has been looked at, the exported file is
+ * rewritten on a worker thread.
  *
  * @author Thomas A. Bennedum <tab@bennedum.org>
  */
@@ -38,8 +53,24 @@ public final class Markers {
     private static final String DYNMAP_MARKERSET_ID = "transporter-markers";
     private static final String DYNMAP_MARKERICON_ID = "transporter-marker";
 
+    // most gates looked at per tick
+    private static final int BATCH_SIZE = 50;
+
     private static DynmapAPI dynmapPlugin = null;
 
+    // full names of gates that may have changed since they were last looked at
+    private static final Set<String> changed = new LinkedHashSet<String>();
+
+    // what was last exported for each gate, by full name
+    private static final Map<String,Entry> entries = new TreeMap<String,Entry>();
+
+    private static boolean exportNeeded = false;
+    private static int taskId = -1;
+
+    // the latest export waiting to be written, taken under exportLock so exports are written in order
+    private static final AtomicReference<Export> nextExport = new AtomicReference<Export>();
+    private static final Object exportLock = new Object();
+
     public static boolean dynmapAvailable() {
         if (! Config.getUseDynmap()) return false;
         if (dynmapPlugin != null) return true;
@@ -49,129 +80,289 @@ public final class Markers {
         return true;
     }
 
+    // Looks at every gate again, used at startup and when the options change.
     public static void update() {
-        exportJSON();
+        entries.clear();
+        exportNeeded = true;
+        for (LocalGateImpl gate : Gates.getLocalGates())
+            changed.add(gate.getFullName());
+        if (dynmapAvailable()) {
+            MarkerSet markerSet = getMarkerSet(dynmapPlugin.getMarkerAPI());
+            if (markerSet != null)
+                for (Marker marker : new ArrayList<Marker>(markerSet.getMarkers()))
+                    if (! (Gates.get(marker.getMarkerID()) instanceof LocalGateImpl)) {
+                        marker.deleteMarker();
+                        Utils.debug("marker for %s deleted", marker.getMarkerID());
+                    }
+        }
+        schedule();
+    }
+
+    // Called when a local gate is added, removed, renamed or changed.
+    public static void changed(String fullName) {
+        changed.add(fullName);
+        schedule();
+    }
+
+    // finishes everything before returning, used when the plugin is disabled
+    public static void flush() {
+        if (taskId != -1) {
+            Utils.cancelTask(taskId);
+            taskId = -1;
+        }
+        process(Integer.MAX_VALUE);
+        if (exportNeeded) export();
+        writeExport();
+    }
 
+    private static void schedule() {
+        if (taskId != -1) return;
+        taskId = Utils.fire(new Runnable() {
+            @Override
+            public void run() {
+                taskId = -1;
+                process(BATCH_SIZE);
+                if (! changed.isEmpty())
+                    schedule();
+                else if (exportNeeded)
+                    export();
+            }
+        });
+    }
+
+    private static void process(int max) {
+        MarkerSet markerSet = null;
+        MarkerIcon markerIcon = null;
         if (dynmapAvailable()) {
             MarkerAPI api = dynmapPlugin.getMarkerAPI();
-            MarkerIcon markerIcon = api.getMarkerIcon(DYNMAP_MARKERICON_ID);
+            markerIcon = api.getMarkerIcon(DYNMAP_MARKERICON_ID);
             if (markerIcon == null) {
                 markerIcon = api.createMarkerIcon(DYNMAP_MARKERICON_ID, DYNMAP_MARKERICON_ID, Markers.class.getResourceAsStream("/resources/images/transporter-tiny.png"));
                 if (markerIcon != null)
                     Utils.debug("dynmap marker icon created");
             }
-            MarkerSet markerSet = api.getMarkerSet(DYNMAP_MARKERSET_ID);
-            if (markerSet == null) {
-                markerSet = api.createMarkerSet(DYNMAP_MARKERSET_ID, Config.getDynmapMarkerSetLabel(), null, false);
-                if (markerSet != null)
-                    Utils.debug("dynmap marker set created");
-            }
-            Map<String,Marker> currentMarkers = new HashMap<String,Marker>();
-            for (Marker marker : markerSet.getMarkers())
-                currentMarkers.put(marker.getMarkerID(), marker);
-
-            // gates
-            for (Iterator<LocalGateImpl> i = Gates.getLocalGates().iterator(); i.hasNext();) {
-                LocalGateImpl gate = i.next();
-                Vector center = gate.getCenter();
-                if (center == null) continue;
-                Marker marker = currentMarkers.remove(gate.getFullName());
-
-                String format = gate.getMarkerFormat();
-                if (format == null) {
-                    if (marker != null)
-                        marker.deleteMarker();
-                    continue;
-                }
-
-                format = format.replace("\\n", "\n");
-                format = format.replace("%name%", gate.getName());
-                format = format.replace("%type%", gate.getType().toString());
-                format = format.replace("%creator%", gate.getCreatorName());
-                format = format.replace("%sendLocal%", Economy.format(gate.getSendLocalCost()));
-                format = format.replace("%sendWorld%", Economy.format(gate.getSendWorldCost()));
-                format = format.replace("%sendServer%", Economy.format(gate.getSendServerCost()));
-                format = format.replace("%receiveLocal%", Economy.format(gate.getReceiveLocalCost()));
-                format = format.replace("%receiveWorld%", Economy.format(gate.getReceiveWorldCost()));
-                format = format.replace("%receiveServer%", Economy.format(gate.getReceiveServerCost()));
-
-                if (format.trim().isEmpty()) {
-                    if (marker != null)
-                        marker.deleteMarker();
-                    continue;
-                }
+            markerSet = getMarkerSet(api);
+        }
 
-                if (marker == null) {
-                    marker = markerSet.createMarker(gate.getFullName(), format, gate.getWorld().getName(), center.getX(), center.getY(), center.getZ(), markerIcon, false);
-                    if (marker != null)
-                        Utils.debug("marker for %s created", gate.getFullName());
-                } else {
-                    Utils.debug("reusing marker for %s", gate.getFullName());
-                    marker.setLabel(format);
-                }
+        for (Iterator<String> i = changed.iterator(); i.hasNext() && (max > 0); max--) {
+            String name = i.next();
+            i.remove();
+            GateImpl gate = Gates.get(name);
+            Entry entry = null;
+            if (gate instanceof LocalGateImpl) {
+                LocalGateImpl lg = (LocalGateImpl)gate;
+                Vector center = lg.getCenter();
+                if (center != null)
+                    entry = new Entry(lg, center);
             }
+            Entry old = (entry == null) ? entries.remove(name) : entries.put(name, entry);
+            if ((old == null) ? (entry == null) : old.equals(entry)) continue;
+            exportNeeded = true;
+            if (markerSet != null)
+                updateMarker(markerSet, markerIcon, name, old, entry);
+        }
+    }
+
+    private static MarkerSet getMarkerSet(MarkerAPI api) {
+        MarkerSet markerSet = api.getMarkerSet(DYNMAP_MARKERSET_ID);
+        if (markerSet == null) {
+            markerSet = api.createMarkerSet(DYNMAP_MARKERSET_ID, Config.getDynmapMarkerSetLabel(), null, false);
+            if (markerSet != null)
+                Utils.debug("dynmap marker set created");
+        }
+        return markerSet;
+    }
 
-            for (Marker marker : currentMarkers.values()) {
+    private static void updateMarker(MarkerSet markerSet, MarkerIcon markerIcon, String name, Entry old, Entry entry) {
+        Marker marker = markerSet.findMarker(name);
+        if ((entry == null) || (entry.label == null) || ((old != null) && (! old.isAt(entry)))) {
+            if (marker != null) {
                 marker.deleteMarker();
-                Utils.debug("marker for %s created", marker.getMarkerID());
+                Utils.debug("marker for %s deleted", name);
+                marker = null;
             }
+            if ((entry == null) || (entry.label == null)) return;
+        }
+        if (marker == null) {
+            marker = markerSet.createMarker(name, entry.label, entry.world, entry.x, entry.y, entry.z, markerIcon, false);
+            if (marker != null)
+                Utils.debug("marker for %s created", name);
+        } else if (! entry.label.equals(marker.getLabel())) {
+            marker.setLabel(entry.label);
+            Utils.debug("marker for %s updated", name);
         }
-
     }
 
-    private static void exportJSON() {
+    private static void export() {
+        exportNeeded = false;
         String fileName = Config.getExportedGatesFile();
         if (fileName == null) return;
         File file = new File(fileName);
         if (! file.isAbsolute())
             file = new File(Global.plugin.getDataFolder(), fileName);
+        List<String> gates = new ArrayList<String>(entries.size());
+        for (Entry entry : entries.values())
+            gates.add(entry.json);
+        nextExport.set(new Export(file, gates));
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                writeExport();
+            }
+        };
+        if (Utils.worker(write) == -1)
+            write.run();
+    }
 
-        Utils.debug("exporting endpoints to %s", file.getAbsolutePath());
-        try {
-            PrintStream out = new PrintStream(file);
-            out.println("[");
-
-            // gates
-            for (Iterator<LocalGateImpl> i = Gates.getLocalGates().iterator(); i.hasNext();) {
-                LocalGateImpl gate = i.next();
-                Vector center = gate.getCenter();
-                out.println("  {");
-                out.println("    \"name\": \"" + gate.getName() + "\",");
-                out.println("    \"world\": \"" + gate.getWorld().getName() + "\",");
-                out.println("    \"type\": \"" + gate.getType().toString() + "\",");
-                out.println("    \"links\": [");
-                for (Iterator<String> li = gate.getLinks().iterator(); li.hasNext();) {
-                    out.print("      \"" + li.next() + "\"");
-                    out.println(li.hasNext() ? "," : "");
-                }
-                out.println("    ],");
-                out.println("    \"x\": " + center.getX() + ",");
-                out.println("    \"y\": " + center.getY() + ",");
-                out.println("    \"z\": " + center.getZ() + ",");
-                if (Economy.isAvailable()) {
-                    if (gate.getLinkLocal()) {
-                        out.println("    \"onWorldSend\": \"" + Economy.format(gate.getSendLocalCost()) + "\",");
-                        out.println("    \"onWorldReceive\": \"" + Economy.format(gate.getReceiveLocalCost()) + "\",");
-                    }
-                    if (gate.getLinkWorld()) {
-                        out.println("    \"offWorldSend\": \"" + Economy.format(gate.getSendWorldCost()) + "\",");
-                        out.println("    \"offWorldReceive\": \"" + Economy.format(gate.getReceiveWorldCost()) + "\",");
-                    }
-                    if (gate.getLinkServer()) {
-                        out.println("    \"offServerSend\": \"" + Economy.format(gate.getSendServerCost()) + "\",");
-                        out.println("    \"offServerReceive\": \"" + Economy.format(gate.getReceiveServerCost()) + "\",");
+    private static void writeExport() {
+        synchronized (exportLock) {
+            Export export = nextExport.getAndSet(null);
+            if (export == null) return;
+            File file = export.file;
+            Utils.debug("exporting endpoints to %s", file.getAbsolutePath());
+            File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+            try {
+                FileOutputStream fos = new FileOutputStream(tmpFile);
+                try {
+                    Writer out = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+                    out.write("[\n");
+                    for (Iterator<String> i = export.gates.iterator(); i.hasNext();) {
+                        out.write(i.next());
+                        out.write(i.hasNext() ? ",\n" : "\n");
                     }
+                    out.write("]\n");
+                    out.flush();
+                    fos.getFD().sync();
+                } finally {
+                    fos.close();
+                }
+                if ((! tmpFile.renameTo(file)) && ((! file.delete()) || (! tmpFile.renameTo(file))))
+                    throw new IOException("unable to rename " + tmpFile.getName());
+            } catch (IOException ioe) {
+                tmpFile.delete();
+                Utils.warning("unable to write %s: %s", file.getAbsolutePath(), ioe.getMessage());
+            }
+        }
+    }
+
+    // expands the %tokens% in a marker format in one pass
+    private static String formatLabel(String format, Map<String,String> values) {
+        format = format.replace("\\n", "\n");
+        StringBuilder b = new StringBuilder(format.length() + 32);
+        int pos = 0;
+        while (true) {
+            int start = format.indexOf('%', pos);
+            if (start == -1) break;
+            int end = format.indexOf('%', start + 1);
+            if (end == -1) break;
+            String value = values.get(format.substring(start + 1, end));
+            if (value == null) {
+                // not a token, the closing % may start one
+                b.append(format, pos, end);
+                pos = end;
+                continue;
+            }
+            b.append(format, pos, start).append(value);
+            pos = end + 1;
+        }
+        b.append(format, pos, format.length());
+        return b.toString();
+    }
+
+    /**
+     * What's shown for a gate, captured on the main thread.
+     */
+    private static final class Entry {
+        final String world;
+        final double x, y, z;
+        // null if the gate has no marker
+        final String label;
+        final String json;
+
+        Entry(LocalGateImpl gate, Vector center) {
+            world = gate.getWorld().getName();
+            x = center.getX();
+            y = center.getY();
+            z = center.getZ();
+
+            Map<String,String> values = new HashMap<String,String>();
+            values.put("name", gate.getName());
+            values.put("type", gate.getType().toString());
+            values.put("creator", gate.getCreatorName());
+            values.put("sendLocal", Economy.format(gate.getSendLocalCost()));
+            values.put("sendWorld", Economy.format(gate.getSendWorldCost()));
+            values.put("sendServer", Economy.format(gate.getSendServerCost()));
+            values.put("receiveLocal", Economy.format(gate.getReceiveLocalCost()));
+            values.put("receiveWorld", Economy.format(gate.getReceiveWorldCost()));
+            values.put("receiveServer", Economy.format(gate.getReceiveServerCost()));
+
+            String format = gate.getMarkerFormat();
+            if (format != null) {
+                format = formatLabel(format, values);
+                if (format.trim().isEmpty()) format = null;
+            }
+            label = format;
+
+            StringBuilder b = new StringBuilder(256);
+            b.append("  {\n");
+            b.append("    \"name\": ").append(JSON.encode(gate.getName())).append(",\n");
+            b.append("    \"world\": ").append(JSON.encode(world)).append(",\n");
+            b.append("    \"type\": ").append(JSON.encode(values.get("type"))).append(",\n");
+            b.append("    \"links\": [");
+            for (Iterator<String> i = gate.getLinks().iterator(); i.hasNext();) {
+                b.append("\n      ").append(JSON.encode(i.next()));
+                if (i.hasNext()) b.append(",");
+            }
+            b.append("\n    ],\n");
+            b.append("    \"x\": ").append(x).append(",\n");
+            b.append("    \"y\": ").append(y).append(",\n");
+            b.append("    \"z\": ").append(z).append(",\n");
+            if (Economy.isAvailable()) {
+                if (gate.getLinkLocal()) {
+                    b.append("    \"onWorldSend\": ").append(JSON.encode(values.get("sendLocal"))).append(",\n");
+                    b.append("    \"onWorldReceive\": ").append(JSON.encode(values.get("receiveLocal"))).append(",\n");
+                }
+                if (gate.getLinkWorld()) {
+                    b.append("    \"offWorldSend\": ").append(JSON.encode(values.get("sendWorld"))).append(",\n");
+                    b.append("    \"offWorldReceive\": ").append(JSON.encode(values.get("receiveWorld"))).append(",\n");
+                }
+                if (gate.getLinkServer()) {
+                    b.append("    \"offServerSend\": ").append(JSON.encode(values.get("sendServer"))).append(",\n");
+                    b.append("    \"offServerReceive\": ").append(JSON.encode(values.get("receiveServer"))).append(",\n");
                 }
-                out.println("    \"creator\": \"" + gate.getCreatorName() + "\"");
-                out.println("  }" + (i.hasNext() ? "," : ""));
             }
+            b.append("    \"creator\": ").append(JSON.encode(gate.getCreatorName())).append("\n");
+            b.append("  }");
+            json = b.toString();
+        }
+
+        boolean isAt(Entry other) {
+            return world.equals(other.world) && (x == other.x) && (y == other.y) && (z == other.z);
+        }
+
+        // the json has the world and location in it
+        @Override
+        public boolean equals(Object o) {
+            if (! (o instanceof Entry)) return false;
+            Entry other = (Entry)o;
+            return json.equals(other.json) &&
+                   ((label == null) ? (other.label == null) : label.equals(other.label));
+        }
 
-            out.println("]");
-            out.close();
-        } catch (IOException ioe) {
-            Utils.warning("unable to write %s: %s", file.getAbsolutePath(), ioe.getMessage());
+        @Override
+        public int hashCode() {
+            return json.hashCode();
         }
     }
 
+    private static final class Export {
+        final File file;
+        final List<String> gates;
+
+        Export(File file, List<String> gates) {
+            this.file = file;
+            this.gates = gates;
+        }
+    }
 
 }
@@ -20,6 +20,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -45,7 +47,25 @@ public final class Permissions {
             new File(Global.plugin.getDataFolder(), PERMISSIONS_FILE);
 
 //    private static Map<String,ListFile> listFiles = new HashMap<String,ListFile>();
-    private static Map<String,PropertiesFile> propertiesFiles = new HashMap<String,PropertiesFile>();
+
+    // how often the permissions file is checked for changes
+    private static final long FILE_CHECK_INTERVAL = 1000;
+    // how long ops and the white-list are cached, in case they're changed by another plugin
+    private static final long NAMES_CACHE_INTERVAL = 5000;
+    private static final int MAX_DECISIONS = 1024;
+
+    private static volatile BasicPermissions basicPermissions = null;
+
+    // cached basic permission decisions by player and node, also the lock for reloading
+    private static final Map<String,Boolean> decisions = new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+            return size() > MAX_DECISIONS;
+        }
+    };
+
+    private static volatile CachedNames ops = null;
+    private static volatile CachedNames whitelist = null;
 
     private static boolean basicPermsInitted = false;
     private static net.milkbowl.vault.permission.Permission vaultPlugin = null;
@@ -133,49 +153,46 @@ public final class Permissions {
     }
 
     public static boolean hasBasic(String name, String perm) {
-        Properties permissions = getProperties(permissionsFile);
-        Utils.debug("basic permissions check '%s' for %s", perm, name);
-        for (;;) {
-            String prop = permissions.getProperty(perm);
-            if (prop != null)
-                Utils.debug("found basic permissions node for '%s': %s", perm, prop);
-            else {
-                prop = permissions.getProperty(perm + ".*");
-                if (prop != null)
-                    Utils.debug("found basic permissions node for '%s.*': %s", perm, prop);
+        BasicPermissions permissions = getBasicPermissions();
+        String key = name + '\0' + perm;
+        synchronized (decisions) {
+            Boolean grant = decisions.get(key);
+            if (grant != null) {
+                Utils.debug("basic permission '%s' for %s %s granted (cached)", perm, name, grant ? "is" : "is not");
+                return grant;
             }
-            if (prop != null) {
-                String[] players = prop.split("\\s*,\\s*");
-                boolean grant = false;
-                boolean found = false;
-                for (String player : players) {
-                    if (player.equals("*") || player.equals("+*")) {
-                        grant = true;
-                        found = true;
-                    } else if (player.equals("-*")) {
-                        grant = false;
-                        found = true;
-                    } else if (player.equals(name) || player.equals("+" + name)) {
-                        grant = true;
-                        found = true;
-                    } else if (player.equals("-" + name)) {
-                        grant = false;
-                        found = true;
-                    }
-                }
-                if (found) {
-                    Utils.debug("basic permission %s granted", grant ? "is" : "is not");
-                    return grant;
-                }
-            } else
-                Utils.debug("basic permissions node '%s' not found", perm);
-            int pos = perm.lastIndexOf(".");
-            if (pos == -1) {
-                Utils.debug("basic permission is not granted");
-                return false;
-            }
-            perm = perm.substring(0, pos);
         }
+        Utils.debug("basic permissions check '%s' for %s", perm, name);
+        boolean grant = permissions.has(name, perm);
+        Utils.debug("basic permission %s granted", grant ? "is" : "is not");
+        synchronized (decisions) {
+            // a reload may have cleared the cache since the check started
+            if (permissions == basicPermissions)
+                decisions.put(key, grant);
+        }
+        return grant;
+    }
+
+    // Forgets cached ops, white-list and permission decisions.
+    public static void invalidate() {
+        ops = null;
+        whitelist = null;
+        synchronized (decisions) {
+            decisions.clear();
+        }
+    }
+
+    // Called before a server or player command runs. Commands that change
+    // ops or the white-list invalidate the caches once they've run.
+    public static void onCommand(String cmd) {
+        String name = cmd.trim().split("\\s+", 2)[0].toLowerCase();
+        if (name.equals("op") || name.equals("deop") || name.equals("whitelist"))
+            Utils.fire(new Runnable() {
+                @Override
+                public void run() {
+                    invalidate();
+                }
+            });
     }
 
     public static boolean has(Player player, String perm) {
@@ -273,8 +290,7 @@ public final class Permissions {
     public static void connect(String playerName) throws PermissionsException {
         if (Global.plugin.getServer().getOnlinePlayers().length >= Global.plugin.getServer().getMaxPlayers())
             throw new PermissionsException("maximim players already connected");
-        for (OfflinePlayer p : Global.plugin.getServer().getWhitelistedPlayers())
-            if (p.getName().equalsIgnoreCase(playerName)) return;
+        if (getWhitelist().contains(playerName.toLowerCase())) return;
         for (OfflinePlayer p : Global.plugin.getServer().getBannedPlayers())
             if (p.getName().equalsIgnoreCase(playerName))
                 throw new PermissionsException("player is banned");
@@ -294,13 +310,28 @@ public final class Permissions {
     }
 
     public static boolean isOp(String playerName) {
-        Set<OfflinePlayer> ops = Global.plugin.getServer().getOperators();
-        for (OfflinePlayer p : Global.plugin.getServer().getOperators())
-            if (p.getName().equalsIgnoreCase(playerName)) return true;
-        return false;
+        return getOps().contains(playerName.toLowerCase());
 //        return getList(new File(OPS_FILE), true).contains(playerName);
     }
 
+    private static Set<String> getOps() {
+        CachedNames names = ops;
+        if ((names == null) || names.isExpired()) {
+            names = new CachedNames(Global.plugin.getServer().getOperators());
+            ops = names;
+        }
+        return names.names;
+    }
+
+    private static Set<String> getWhitelist() {
+        CachedNames names = whitelist;
+        if ((names == null) || names.isExpired()) {
+            names = new CachedNames(Global.plugin.getServer().getWhitelistedPlayers());
+            whitelist = names;
+        }
+        return names.names;
+    }
+
     /*
     private static Set<String> getList(File file, boolean forceLower) {
         ListFile listFile = listFiles.get(file.getAbsolutePath());
@@ -329,22 +360,36 @@ public final class Permissions {
     }
      */
 
-    private static Properties getProperties(File file) {
-        PropertiesFile propsFile = propertiesFiles.get(file.getAbsolutePath());
-        if (propsFile == null) {
-            propsFile = new PropertiesFile();
-            propertiesFiles.put(file.getAbsolutePath(), propsFile);
-        }
-        if ((propsFile.data == null) || (propsFile.lastRead < file.lastModified())) {
-            propsFile.data = new Properties();
+    private static BasicPermissions getBasicPermissions() {
+        long now = System.currentTimeMillis();
+        BasicPermissions permissions = basicPermissions;
+        if ((permissions != null) && (now < permissions.checkTime)) return permissions;
+        synchronized (decisions) {
+            permissions = basicPermissions;
+            if ((permissions != null) && (now < permissions.checkTime)) return permissions;
+            long modified = permissionsFile.lastModified();
+            if ((permissions != null) && (permissions.modified == modified)) {
+                permissions.checkTime = now + FILE_CHECK_INTERVAL;
+                return permissions;
+            }
+            Properties props = new Properties();
             try {
-                propsFile.data.load(new FileInputStream(file));
-                propsFile.lastRead = System.currentTimeMillis();
+                FileInputStream in = new FileInputStream(permissionsFile);
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
             } catch (IOException ioe) {
-                Utils.warning("unable to read %s: %s", file.getAbsolutePath(), ioe.getMessage());
+                Utils.warning("unable to read %s: %s", permissionsFile.getAbsolutePath(), ioe.getMessage());
             }
+            permissions = new BasicPermissions(props, modified);
+            permissions.checkTime = now + FILE_CHECK_INTERVAL;
+            basicPermissions = permissions;
+            decisions.clear();
+            Utils.debug("compiled %s basic permissions nodes", props.size());
+            return permissions;
         }
-        return propsFile.data;
     }
 
     /*
@@ -354,9 +399,121 @@ public final class Permissions {
     }
 */
 
-    private static class PropertiesFile {
-        Properties data = null;
-        long lastRead = 0;
+    /**
+     * The contents of the permissions file as a tree of nodes, one level per
+     * part of a permission name.
+     */
+    private static final class BasicPermissions {
+
+        final long modified;
+        volatile long checkTime;
+        private final Node root = new Node();
+
+        BasicPermissions(Properties props, long modified) {
+            this.modified = modified;
+            for (String perm : props.stringPropertyNames()) {
+                Rule rule = new Rule(props.getProperty(perm));
+                if (perm.endsWith(".*"))
+                    getNode(perm.substring(0, perm.length() - 2)).wildcard = rule;
+                else
+                    getNode(perm).exact = rule;
+            }
+        }
+
+        private Node getNode(String perm) {
+            Node node = root;
+            for (String part : perm.split("\\.", -1)) {
+                Node child = node.children.get(part);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(part, child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        // The most specific node that mentions the player decides. A node
+        // without a wildcard rule is used before the wildcard rule at the
+        // same level.
+        boolean has(String name, String perm) {
+            String[] parts = perm.split("\\.", -1);
+            Node[] path = new Node[parts.length];
+            Node node = root;
+            int depth = 0;
+            for (String part : parts) {
+                node = node.children.get(part);
+                if (node == null) break;
+                path[depth++] = node;
+            }
+            while (--depth >= 0) {
+                Rule rule = (path[depth].exact != null) ? path[depth].exact : path[depth].wildcard;
+                if (rule == null) continue;
+                Boolean grant = rule.check(name);
+                if (grant != null) return grant;
+            }
+            return false;
+        }
+    }
+
+    private static final class Node {
+        final Map<String,Node> children = new HashMap<String,Node>();
+        Rule exact = null;
+        Rule wildcard = null;
+    }
+
+    /**
+     * A list of players granted or denied a node, where later entries
+     * override earlier ones.
+     */
+    private static final class Rule {
+        // the value and position of the last entry for everyone
+        private Boolean all = null;
+        private int allIndex = -1;
+        private final Map<String,Boolean> players = new HashMap<String,Boolean>();
+        private final Map<String,Integer> playerIndexes = new HashMap<String,Integer>();
+
+        Rule(String prop) {
+            String[] entries = prop.split("\\s*,\\s*");
+            for (int i = 0; i < entries.length; i++) {
+                String entry = entries[i];
+                if (entry.equals("*") || entry.equals("+*")) {
+                    all = true;
+                    allIndex = i;
+                } else if (entry.equals("-*")) {
+                    all = false;
+                    allIndex = i;
+                } else if (entry.startsWith("-")) {
+                    players.put(entry.substring(1), false);
+                    playerIndexes.put(entry.substring(1), i);
+                } else {
+                    if (entry.startsWith("+")) entry = entry.substring(1);
+                    players.put(entry, true);
+                    playerIndexes.put(entry, i);
+                }
+            }
+        }
+
+        // returns null if the rule doesn't mention the player
+        Boolean check(String name) {
+            Integer index = playerIndexes.get(name);
+            if ((index == null) || (index < allIndex)) return all;
+            return players.get(name);
+        }
+    }
+
+    private static final class CachedNames {
+        final Set<String> names = new HashSet<String>();
+        private final long expires = System.currentTimeMillis() + NAMES_CACHE_INTERVAL;
+
+        CachedNames(Set<OfflinePlayer> players) {
+            for (OfflinePlayer p : players)
+                names.add(p.getName().toLowerCase());
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
     }
 
 }
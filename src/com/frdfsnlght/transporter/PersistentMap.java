@@ -0,0 +1,313 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable hash map where adding or removing a key returns a new map.
+ *
+ * The map is a hash trie with 32 slots per level. A change copies only the
+ * nodes on the path to the key, a few small arrays, and shares everything
+ * else with the map it was made from, so a version can be published to
+ * other threads and replaced without copying the whole map.
+ *
+ * Null keys and values aren't allowed. Long keys can be looked up with
+ * get(long), which doesn't box the key.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class PersistentMap<K,V> {
+
+    private static final PersistentMap<Object,Object> EMPTY = new PersistentMap<Object,Object>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    @SuppressWarnings("unchecked")
+    public static <K,V> PersistentMap<K,V> empty() {
+        return (PersistentMap<K,V>)EMPTY;
+    }
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null) return null;
+        return (V)root.find(key, hash(key), 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (root == null) return null;
+        return (V)root.findLong(key, hash(key), 0);
+    }
+
+    public PersistentMap<K,V> plus(K key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("null values are not allowed");
+        int h = hash(key);
+        Node newRoot = ((root == null) ? BitmapNode.EMPTY : root).plus(key, h, value, 0);
+        if (newRoot == root) return this;
+        return new PersistentMap<K,V>(newRoot, containsKey(key) ? size : (size + 1));
+    }
+
+    public PersistentMap<K,V> minus(Object key) {
+        if (root == null) return this;
+        Node newRoot = root.minus(key, hash(key), 0);
+        if (newRoot == root) return this;
+        return new PersistentMap<K,V>(newRoot, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<K> keys() {
+        List<Object> keys = new ArrayList<Object>(size);
+        if (root != null) root.collect(keys, null);
+        return (List<K>)keys;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<Object> values = new ArrayList<Object>(size);
+        if (root != null) root.collect(null, values);
+        return (List<V>)values;
+    }
+
+    // Long keys are hashed the same whether they're boxed or not. Long's own
+    // hash folds the halves together, which is poor for chunk keys.
+    private static int hash(Object key) {
+        if (key instanceof Long) return hash(((Long)key).longValue());
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+    private static boolean matches(Object k, long key) {
+        return (k instanceof Long) && (((Long)k).longValue() == key);
+    }
+
+    private static Object[] replace(Object[] array, int i, Object o) {
+        Object[] a = array.clone();
+        a[i] = o;
+        return a;
+    }
+
+    private static abstract class Node {
+        abstract Object find(Object key, int hash, int shift);
+        abstract Object findLong(long key, int hash, int shift);
+        // returns this if nothing changed
+        abstract Node plus(Object key, int hash, Object value, int shift);
+        // returns this if nothing changed, or null if the node is now empty
+        abstract Node minus(Object key, int hash, int shift);
+        abstract void collect(List<Object> keys, List<Object> values);
+    }
+
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        // key and value pairs for each bit set, a null key means the value is a child node
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        Object find(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return null;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) return ((Node)array[i + 1]).find(key, hash, shift + 5);
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        @Override
+        Object findLong(long key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return null;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) return ((Node)array[i + 1]).findLong(key, hash, shift + 5);
+            return matches(k, key) ? array[i + 1] : null;
+        }
+
+        @Override
+        Node plus(Object key, int hash, Object value, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, i);
+                a[i] = key;
+                a[i + 1] = value;
+                System.arraycopy(array, i, a, i + 2, array.length - i);
+                return new BitmapNode(bitmap | bit, a);
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node)v).plus(key, hash, value, shift + 5);
+                if (child == v) return this;
+                return new BitmapNode(bitmap, replace(array, i + 1, child));
+            }
+            if (key.equals(k)) {
+                if (value == v) return this;
+                return new BitmapNode(bitmap, replace(array, i + 1, value));
+            }
+            // two keys want this slot, push both down a level
+            int kHash = hash(k);
+            Node child;
+            if (kHash == hash)
+                child = new CollisionNode(hash, new Object[] { k, v, key, value });
+            else
+                child = EMPTY.plus(k, kHash, v, shift + 5).plus(key, hash, value, shift + 5);
+            Object[] a = replace(array, i, null);
+            a[i + 1] = child;
+            return new BitmapNode(bitmap, a);
+        }
+
+        @Override
+        Node minus(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return this;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null) {
+                Node child = ((Node)array[i + 1]).minus(key, hash, shift + 5);
+                if (child == array[i + 1]) return this;
+                if (child != null)
+                    return new BitmapNode(bitmap, replace(array, i + 1, child));
+            } else if (! key.equals(k))
+                return this;
+            if (bitmap == bit) return null;
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new BitmapNode(bitmap ^ bit, a);
+        }
+
+        @Override
+        void collect(List<Object> keys, List<Object> values) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null)
+                    ((Node)array[i + 1]).collect(keys, values);
+                else {
+                    if (keys != null) keys.add(array[i]);
+                    if (values != null) values.add(array[i + 1]);
+                }
+            }
+        }
+
+    }
+
+    // keys whose hashes are all the same
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+        // key and value pairs
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        Object find(Object key, int hash, int shift) {
+            if (hash != this.hash) return null;
+            for (int i = 0; i < array.length; i += 2)
+                if (key.equals(array[i])) return array[i + 1];
+            return null;
+        }
+
+        @Override
+        Object findLong(long key, int hash, int shift) {
+            if (hash != this.hash) return null;
+            for (int i = 0; i < array.length; i += 2)
+                if (matches(array[i], key)) return array[i + 1];
+            return null;
+        }
+
+        @Override
+        Node plus(Object key, int hash, Object value, int shift) {
+            if (hash != this.hash) {
+                // put this node under a regular one and add the key to that
+                int bit = 1 << ((this.hash >>> shift) & 31);
+                return new BitmapNode(bit, new Object[] { null, this }).plus(key, hash, value, shift);
+            }
+            for (int i = 0; i < array.length; i += 2)
+                if (key.equals(array[i])) {
+                    if (value == array[i + 1]) return this;
+                    return new CollisionNode(hash, replace(array, i + 1, value));
+                }
+            Object[] a = new Object[array.length + 2];
+            System.arraycopy(array, 0, a, 0, array.length);
+            a[array.length] = key;
+            a[array.length + 1] = value;
+            return new CollisionNode(hash, a);
+        }
+
+        @Override
+        Node minus(Object key, int hash, int shift) {
+            if (hash != this.hash) return this;
+            for (int i = 0; i < array.length; i += 2) {
+                if (! key.equals(array[i])) continue;
+                if (array.length == 2) return null;
+                Object[] a = new Object[array.length - 2];
+                System.arraycopy(array, 0, a, 0, i);
+                System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+                return new CollisionNode(hash, a);
+            }
+            return this;
+        }
+
+        @Override
+        void collect(List<Object> keys, List<Object> values) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (keys != null) keys.add(array[i]);
+                if (values != null) values.add(array[i + 1]);
+            }
+        }
+
+    }
+
+}
@@ -24,13 +24,16 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.PlayerDeathEvent;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerKickEvent;
@@ -147,6 +150,57 @@ public final class PlayerListenerImpl implements Listener {
 
     public static Player testPlayer = null;
 
+    // how far from a player a portal is looked for after a move misses one
+    private static final int PORTAL_SEARCH_DISTANCE = 16;
+
+    // Movement state for each player, keyed by entity id
+    private static final LongObjectMap<MoveState> moveStates = new LongObjectMap<MoveState>();
+
+    // Remembers where a player's last portal lookup missed and how far they
+    // can move from there before they could be in a portal. The distance
+    // only holds for the version of the gate map it was measured against.
+    private static final class MoveState {
+        World world = null;
+        int x, z;
+        int clearance = 0;
+        // to the nearest portal, up to PORTAL_SEARCH_DISTANCE
+        int distance = 0;
+        int version;
+        // a gate lock or countdown may still need to be removed
+        boolean cleanupPending = true;
+
+        boolean isClear(World world, int x, int z) {
+            return (world == this.world) &&
+                   (Math.abs(x - this.x) < clearance) &&
+                   (Math.abs(z - this.z) < clearance) &&
+                   (version == Gates.gateMap.getVersion());
+        }
+
+        void update(World world, int x, int z) {
+            this.world = world;
+            this.x = x;
+            this.z = z;
+            version = Gates.gateMap.getVersion();
+            distance = Gates.getDistance(world, x, z, GateMap.PORTAL, PORTAL_SEARCH_DISTANCE);
+            clearance = distance;
+            // look again before the player could come in range for a pre-reservation
+            if (Config.getUsePreReservations())
+                clearance = Math.max(0, distance - Config.getPreReservationDistance());
+        }
+    }
+
+    public static void setCleanupPending(Entity entity) {
+        MoveState state = moveStates.get(entity.getEntityId());
+        if (state != null) state.cleanupPending = true;
+    }
+
+    // returns true if there's still something to clean up
+    private static boolean cleanup(Player player) {
+        ReservationImpl.removeGateLock(player);
+        ReservationImpl.removeCountdown(player);
+        return ReservationImpl.isGateLocked(player) || ReservationImpl.hasCountdown(player);
+    }
+
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     public void onPlayerInteract(PlayerInteractEvent event) {
         Block block = event.getClickedBlock();
@@ -157,17 +211,16 @@ public final class PlayerListenerImpl implements Listener {
         Location location = block.getLocation();
         Context ctx = new Context(event.getPlayer());
 
-        LocalGateImpl triggerGate = Gates.findGateForTrigger(location);
-        LocalGateImpl switchGate = Gates.findGateForSwitch(location);
+        GateMap.Lookup gates = Gates.findGates(block.getWorld(), block.getX(), block.getY(), block.getZ());
+        LocalGateImpl triggerGate = (gates == null) ? null : gates.getGate(GateMap.TRIGGER);
+        LocalGateImpl switchGate = (gates == null) ? null : gates.getGate(GateMap.SWITCH);
         if (event.getPlayer() == testPlayer) {
             Utils.debug("-Interaction-----------------------------------------");
             Utils.debug("location: %s", Utils.blockCoords(location));
             Utils.debug("triggerGate: %s", (triggerGate == null) ? "none" : triggerGate.getFullName());
             Utils.debug("switchGate: %s", (switchGate == null) ? "none" : switchGate.getFullName());
-            if ((triggerGate == null) && (switchGate == null)) {
-                Utils.debug("triggerMap: %s", Gates.triggerMap.toString(testPlayer.getWorld()));
-                Utils.debug("switchMap: %s", Gates.switchMap.toString(testPlayer.getWorld()));
-            }
+            if ((triggerGate == null) && (switchGate == null))
+                Utils.debug("gateMap: %s", Gates.gateMap.toString(testPlayer.getWorld()));
         }
 
         if ((triggerGate == null) && (switchGate == null)) return;
@@ -232,12 +285,34 @@ public final class PlayerListenerImpl implements Listener {
             (event.getFrom().getBlockZ() == event.getTo().getBlockZ())) return;
 
         Player player = event.getPlayer();
-        LocalGateImpl fromGate = Gates.findGateForPortal(event.getTo());
+        Location to = event.getTo();
+        World world = to.getWorld();
+        int x = to.getBlockX();
+        int z = to.getBlockZ();
+        MoveState state = moveStates.get(player.getEntityId());
+        if (state == null) {
+            state = new MoveState();
+            moveStates.put(player.getEntityId(), state);
+        }
+        if (state.isClear(world, x, z)) {
+            if (state.cleanupPending)
+                state.cleanupPending = cleanup(player);
+            return;
+        }
+
+        LocalGateImpl fromGate = Gates.findGate(world, x, to.getBlockY(), z, GateMap.PORTAL);
         if (fromGate == null) {
-            ReservationImpl.removeGateLock(player);
-            ReservationImpl.removeCountdown(player);
+            state.cleanupPending = cleanup(player);
+            state.update(world, x, z);
+            if (Config.getUsePreReservations()) {
+                int preDistance = Config.getPreReservationDistance();
+                PreReservations.onMove(player, (state.distance <= preDistance) ?
+                        Gates.findNearestGate(world, x, z, GateMap.PORTAL, preDistance + 1) : null);
+            }
             return;
         }
+        state.clearance = 0;
+        state.cleanupPending = true;
         if (ReservationImpl.isGateLocked(player)) return;
 
         if (ReservationImpl.hasCountdown(player)) return;
@@ -316,12 +391,19 @@ public final class PlayerListenerImpl implements Listener {
 
     }
 
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerCommandPreprocess(PlayerCommandPreprocessEvent event) {
+        Permissions.onCommand(event.getMessage().substring(1));
+    }
+
     @EventHandler(priority = EventPriority.NORMAL)
     public void onPlayerQuit(PlayerQuitEvent event) {
         Player player = event.getPlayer();
         ReservationImpl r = ReservationImpl.get(player);
 
         TabList.stopPlayer(player);
+        moveStates.remove(player.getEntityId());
+        PreReservations.cancel(player);
 
         for (Server server : Servers.getAll())
             server.sendPlayerQuit(player, r != null);
@@ -334,6 +416,7 @@ public final class PlayerListenerImpl implements Listener {
         Player player = event.getPlayer();
         ReservationImpl r = ReservationImpl.get(player);
 
+        moveStates.remove(player.getEntityId());
         for (Server server : Servers.getAll())
             server.sendPlayerKick(player, r != null);
         if (r != null)
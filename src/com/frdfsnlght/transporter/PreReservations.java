@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import com.frdfsnlght.transporter.api.GateException;
+import com.frdfsnlght.transporter.api.ReservationException;
+import java.util.HashMap;
+import java.util.Map;
+import org.bukkit.entity.Player;
+
+/**
+ * Tentative reservations for players walking up to a gate that sends them
+ * to another server.
+ *
+ * When the usePreReservations option is on and a player comes within
+ * preReservationDistance blocks of such a gate, a tentative reservation is
+ * sent so the other server can check it and start loading the arrival gate
+ * ahead of time. If it's approved and nothing the other server checked has
+ * changed when the player steps into the portal, the real reservation just
+ * commits it and the player is sent right away. The other server holds the
+ * reservation for the player and checks it again when they join. Otherwise
+ * the real reservation goes through the usual round trip.
+ *
+ * At most one tentative reservation is kept per player. It's cancelled
+ * when the player walks away or quits.
+ *
+ * All methods must be called on the main thread.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class PreReservations {
+
+    // by player name
+    private static final Map<String,Entry> entries = new HashMap<String,Entry>();
+
+    // Called as a player moves near portals with the nearest gate that's
+    // close enough, or null.
+    public static void onMove(Player player, LocalGateImpl gate) {
+        Entry entry = entries.get(player.getName());
+        if (entry != null) {
+            if (entry.gate == gate) return;
+            entries.remove(player.getName());
+            if (entry.reservation != null)
+                entry.reservation.cancelTentative();
+        }
+        if ((gate == null) || (! isRemoteGate(gate))) return;
+        if (ReservationImpl.isGateLocked(player) || ReservationImpl.hasCountdown(player)) return;
+        if (ReservationImpl.get(player) != null) return;
+
+        // a failed attempt is remembered so it isn't retried until the player leaves
+        entry = new Entry(gate);
+        entries.put(player.getName(), entry);
+        try {
+            ReservationImpl r = ReservationImpl.tentative(player, gate);
+            r.sendTentative();
+            entry.reservation = r;
+        } catch (ReservationException e) {
+            Utils.debug("no pre-reservation for %s at '%s': %s", player.getName(), gate.getFullName(), e.getMessage());
+        }
+    }
+
+    public static void cancel(Player player) {
+        onMove(player, null);
+    }
+
+    // Returns the approved tentative reservation the reservation can commit,
+    // or null. Any other tentative reservation for the player is cancelled.
+    static ReservationImpl take(ReservationImpl r) {
+        if (r.getPlayerName() == null) return null;
+        Entry entry = entries.remove(r.getPlayerName());
+        if ((entry == null) || (entry.reservation == null)) return null;
+        ReservationImpl pre = entry.reservation;
+        if (pre.isPreApproved() && pre.canCommit(r)) {
+            ReservationRegistry.remove(pre);
+            return pre;
+        }
+        pre.cancelTentative();
+        return null;
+    }
+
+    // Called when a tentative reservation is denied. The player has to walk
+    // away before it's tried again.
+    static void denied(ReservationImpl pre) {
+        Entry entry = entries.get(pre.getPlayerName());
+        if ((entry != null) && (entry.reservation == pre))
+            entry.reservation = null;
+    }
+
+    // Called when a tentative reservation expires so the next move tries again.
+    static void forget(ReservationImpl pre) {
+        Entry entry = entries.get(pre.getPlayerName());
+        if ((entry != null) && (entry.reservation == pre))
+            entries.remove(pre.getPlayerName());
+    }
+
+    private static boolean isRemoteGate(LocalGateImpl gate) {
+        if ((! gate.isOpen()) || gate.getSendNextLink()) return false;
+        try {
+            GateImpl toGate = gate.getDestinationGate();
+            if (toGate.isSameServer()) return false;
+            Server server = (Server)((RemoteGateImpl)toGate).getRemoteServer();
+            return server.isConnectionConnected();
+        } catch (GateException e) {
+            return false;
+        }
+    }
+
+    private static final class Entry {
+        final LocalGateImpl gate;
+        // null if there isn't one in progress
+        ReservationImpl reservation = null;
+
+        Entry(LocalGateImpl gate) {
+            this.gate = gate;
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+
+/**
+ * Snapshots of the chunks covering a rectangle of a world.
+ *
+ * Captured on the main thread and then safe to read from any thread.
+ * Blocks outside the captured chunks or the world's height read as air.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class RegionSnapshot {
+
+    private final World world;
+    private final int minCX, minCZ, maxCX, maxCZ;
+    private final int maxHeight;
+    private final ChunkSnapshot[] chunks;
+
+    // must be called on the main thread, loads any chunks that aren't loaded
+    public static RegionSnapshot capture(World world, int minX, int minZ, int maxX, int maxZ) {
+        return new RegionSnapshot(world, minX >> 4, minZ >> 4, maxX >> 4, maxZ >> 4);
+    }
+
+    private RegionSnapshot(World world, int minCX, int minCZ, int maxCX, int maxCZ) {
+        this.world = world;
+        this.minCX = minCX;
+        this.minCZ = minCZ;
+        this.maxCX = maxCX;
+        this.maxCZ = maxCZ;
+        maxHeight = world.getMaxHeight();
+        int sizeX = maxCX - minCX + 1;
+        chunks = new ChunkSnapshot[sizeX * (maxCZ - minCZ + 1)];
+        for (int cx = minCX; cx <= maxCX; cx++)
+            for (int cz = minCZ; cz <= maxCZ; cz++)
+                chunks[((cz - minCZ) * sizeX) + (cx - minCX)] = world.getChunkAt(cx, cz).getChunkSnapshot();
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    public int getTypeId(int x, int y, int z) {
+        ChunkSnapshot chunk = getChunk(x, y, z);
+        if (chunk == null) return 0;
+        return chunk.getBlockTypeId(x & 15, y, z & 15);
+    }
+
+    public byte getData(int x, int y, int z) {
+        ChunkSnapshot chunk = getChunk(x, y, z);
+        if (chunk == null) return 0;
+        return (byte)chunk.getBlockData(x & 15, y, z & 15);
+    }
+
+    private ChunkSnapshot getChunk(int x, int y, int z) {
+        if ((y < 0) || (y >= maxHeight)) return null;
+        int cx = x >> 4;
+        int cz = z >> 4;
+        if ((cx < minCX) || (cx > maxCX) || (cz < minCZ) || (cz > maxCZ)) return null;
+        return chunks[((cz - minCZ) * (maxCX - minCX + 1)) + (cx - minCX)];
+    }
+
+}
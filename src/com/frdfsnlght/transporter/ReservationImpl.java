@@ -25,7 +25,9 @@ import com.frdfsnlght.transporter.api.event.EntityDepartEvent;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import org.bukkit.GameMode;
 import org.bukkit.Location;
 import org.bukkit.Material;
@@ -51,20 +53,21 @@ import org.bukkit.util.Vector;
  */
 public final class ReservationImpl implements Reservation {
 
-    private static final Map<Integer,Long> gateLocks = new HashMap<Integer,Long>();
     private static final Map<Integer,Countdown> countdowns = new HashMap<Integer,Countdown>();
 
+    // how long an arrival waits for the chunks around the arrival gate to load
+    private static final long WARM_DEADLINE = 2000;
+
     private static long nextId = 1;
-    private static final Map<Long,ReservationImpl> reservations = new HashMap<Long,ReservationImpl>();
 
     public static ReservationImpl get(long id) {
-        return reservations.get(id);
+        return ReservationRegistry.get(id);
     }
 
     public static ReservationImpl get(String playerName) {
-        for (ReservationImpl r : reservations.values())
-            if (playerName.equals(r.playerName)) return r;
-        return null;
+        ReservationImpl r = ReservationRegistry.get(playerName);
+        // nobody is on the way yet for a tentative reservation
+        return ((r == null) || r.tentative) ? null : r;
     }
 
     public static ReservationImpl get(Player player) {
@@ -72,7 +75,7 @@ public final class ReservationImpl implements Reservation {
     }
 
     private static boolean put(ReservationImpl r) {
-        if (reservations.put(r.localId, r) == null) {
+        if (ReservationRegistry.put(r)) {
             Utils.debug("put reservation %s", r.localId);
             return true;
         }
@@ -80,7 +83,7 @@ public final class ReservationImpl implements Reservation {
     }
 
     private static boolean remove(ReservationImpl r) {
-        if (reservations.remove(r.localId) != null) {
+        if (ReservationRegistry.remove(r)) {
             Utils.debug("removed reservation %s", r.localId);
             return true;
         }
@@ -89,22 +92,19 @@ public final class ReservationImpl implements Reservation {
 
     public static void removeGateLock(Entity entity) {
         if (entity == null) return;
-        Long expiry = gateLocks.get(entity.getEntityId());
-        if (expiry == null) return;
-        if (expiry <= System.currentTimeMillis()) {
-            gateLocks.remove(entity.getEntityId());
+        if (GateLocks.remove(entity))
             Utils.debug("removed gate lock for entity %d", entity.getEntityId());
-        }
     }
 
     public static boolean isGateLocked(Entity entity) {
         if (entity == null) return false;
-        return gateLocks.containsKey(entity.getEntityId());
+        return GateLocks.isLocked(entity);
     }
 
     public static void addGateLock(Entity entity) {
         if (entity == null) return;
-        gateLocks.put(entity.getEntityId(), System.currentTimeMillis() + Config.getGateLockExpiration());
+        GateLocks.add(entity);
+        PlayerListenerImpl.setCleanupPending(entity);
         Utils.debug("added gate lock for entity %d", entity.getEntityId());
     }
 
@@ -142,6 +142,7 @@ public final class ReservationImpl implements Reservation {
     public static void addCountdown(Countdown countdown) {
         if (countdown == null) return;
         countdowns.put(countdown.getPlayer().getEntityId(), countdown);
+        PlayerListenerImpl.setCleanupPending(countdown.getPlayer());
         Utils.debug("added countdown for entity %d", countdown.getPlayer().getEntityId());
     }
 
@@ -200,6 +201,16 @@ public final class ReservationImpl implements Reservation {
 
     private boolean createdEntity = false;
 
+    // sent ahead of a player approaching a gate, see PreReservations
+    private boolean tentative = false;
+    private boolean preApproved = false;
+    // set on the sending side once the traveler is gone
+    private boolean departed = false;
+    // set on the receiving side for a reservation that wasn't checked on its own
+    private boolean committed = false;
+
+    private ChunkWarmer.Job destinationChunks = null;
+
     // player stepping into gate
     public ReservationImpl(Player player, LocalGateImpl fromGate) throws ReservationException {
         addGateLock(player);
@@ -207,6 +218,13 @@ public final class ReservationImpl implements Reservation {
         extractFromGate(fromGate);
     }
 
+    // player approaching gate
+    private ReservationImpl(Player player, LocalGateImpl fromGate, boolean tentative) throws ReservationException {
+        this.tentative = tentative;
+        extractPlayer(player);
+        extractFromGate(fromGate);
+    }
+
     // vehicle moving into gate
     public ReservationImpl(Vehicle vehicle, LocalGateImpl fromGate) throws ReservationException {
         addGateLock(vehicle);
@@ -256,6 +274,7 @@ public final class ReservationImpl implements Reservation {
     public ReservationImpl(TypeMap in, Server server) throws ReservationException {
         remoteId = in.getInt("id");
         departing = false;
+        tentative = in.getBoolean("tentative", false);
         try {
             entityType = Utils.valueOf(EntityType.class, in.getString("entityType"));
         } catch (IllegalArgumentException e) {
@@ -334,6 +353,54 @@ public final class ReservationImpl implements Reservation {
         }
     }
 
+    static ReservationImpl tentative(Player player, LocalGateImpl fromGate) throws ReservationException {
+        return new ReservationImpl(player, fromGate, true);
+    }
+
+    long getLocalId() {
+        return localId;
+    }
+
+    long getRemoteId() {
+        return remoteId;
+    }
+
+    Server getFromServer() {
+        return fromServer;
+    }
+
+    String getPlayerName() {
+        return playerName;
+    }
+
+    int getLocalEntityId() {
+        return localEntityId;
+    }
+
+    boolean isPreApproved() {
+        return preApproved;
+    }
+
+    // true if the other server would give the same answer for this reservation as for the tentative one
+    boolean canCommit(ReservationImpl r) {
+        return (toServer == r.toServer) &&
+               (playerName != null) && playerName.equals(r.playerName) &&
+               (fromGateName != null) && fromGateName.equals(r.fromGateName) &&
+               (toGateName != null) && toGateName.equals(r.toGateName) &&
+               getCheckKey().equals(r.getCheckKey());
+    }
+
+    // everything about the traveler the arrival side checks
+    private String getCheckKey() {
+        return JSON.encode(Arrays.asList(
+                Inventory.encodeItemStackArray(inventory),
+                Inventory.encodeItemStackArray(armor),
+                PotionEffects.encodePotionEffects(potionEffects),
+                level,
+                gameMode,
+                playerPin));
+    }
+
     /* Reservation interface */
 
     @Override
@@ -450,6 +517,8 @@ public final class ReservationImpl implements Reservation {
     public TypeMap encode() {
         TypeMap out = new TypeMap();
         out.put("id", localId);
+        if (tentative)
+            out.put("tentative", true);
         out.put("entityType", entityType.toString());
         out.put("entityId", localEntityId);
         out.put("playerName", playerName);
@@ -500,6 +569,10 @@ public final class ReservationImpl implements Reservation {
 
     // called to handle departure on the sending side
     public void depart() throws ReservationException {
+        // an approved tentative reservation that still holds lets this one skip the round trip
+        ReservationImpl pre = (toServer == null) ? null : PreReservations.take(this);
+        if (pre != null)
+            localId = pre.localId;
         put(this);
         try {
             addGateLock(entity);
@@ -521,43 +594,65 @@ public final class ReservationImpl implements Reservation {
             } else {
                 // going to remote server
                 try {
-                    Utils.debug("sending reservation for %s to %s...", getTraveler(), getDestination());
-                    toServer.sendReservation(this);
-
-                    // setup delayed task to remove the reservation on this side if it doesn't work out
-                    final ReservationImpl me = this;
-                    Utils.fireDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (! remove(me)) return;
-                            Utils.warning("reservation for %s to %s timed out", getTraveler(), getDestination());
-                        }
-                    }, Config.getArrivalWindow());
+                    if (pre != null) {
+                        Utils.debug("committing reservation for %s to %s...", getTraveler(), getDestination());
+                        toServer.sendReservationCommit(this);
+                    } else {
+                        Utils.debug("sending reservation for %s to %s...", getTraveler(), getDestination());
+                        toServer.sendReservation(this);
+                    }
+
+                    // remove the reservation on this side if it doesn't work out
+                    ReservationRegistry.expireAfter(this, Config.getArrivalWindow());
 
                 } catch (ServerException e) {
                     Utils.severe(e, "reservation send for %s to %s failed:", getTraveler(), getDestination());
                     remove(this);
                     throw new ReservationException("teleport %s to %s failed", getTraveler(), getDestination());
                 }
+
+                // the other server approved the tentative reservation and checks the rest on arrival
+                if (pre != null)
+                    approved();
             }
         } catch (ReservationException e) {
             remove(this);
+            if (pre != null)
+                pre.cancelTentative();
             throw e;
         }
     }
 
+    // called on the sending side to have a reservation checked before the player gets to the gate
+    void sendTentative() throws ReservationException {
+        checkLocalDepartureGate();
+        put(this);
+        try {
+            Utils.debug("sending tentative reservation for %s to %s...", getTraveler(), getDestination());
+            toServer.sendReservation(this);
+            ReservationRegistry.expireAfter(this, Config.getArrivalWindow());
+        } catch (ServerException e) {
+            remove(this);
+            throw new ReservationException(e.getMessage());
+        }
+    }
+
+    // called on the sending side when a tentative reservation won't be used
+    void cancelTentative() {
+        remove(this);
+        Utils.debug("cancelling tentative reservation for %s to %s", getTraveler(), getDestination());
+        try {
+            toServer.sendReservationCancel(localId);
+        } catch (ServerException e) {
+            // it'll expire over there
+        }
+    }
+
     // called on the receiving side to indicate this reservation has been sent from the sender
     public void receive() {
         try {
             Utils.debug("received reservation for %s to %s from %s...", getTraveler(), getDestination(), fromServer.getName());
-            if (playerName != null) {
-                try {
-                    Permissions.connect(playerName);
-                } catch (PermissionsException e) {
-                    throw new ReservationException(e.getMessage());
-                }
-            }
-            checkLocalArrivalGate();
+            checkArrival();
             put(this);
             try {
                 fromServer.sendReservationApproved(remoteId);
@@ -570,27 +665,22 @@ public final class ReservationImpl implements Reservation {
             Utils.debug("reservation for %s to %s approved", getTraveler(), getDestination());
 
             if (playerName == null) {
-                // there's no player coming, so handle the "arrival" now
-                try {
-                    arrive();
-                } catch (ReservationException e) {
-                    Utils.warning("reservation arrival for %s to %s to %s failed:", getTraveler(), getDestination(), fromServer.getName(), e.getMessage());
-                }
-            } else {
-                // set up a delayed task to cancel the arrival if they never arrive
-                final ReservationImpl res = this;
-                Utils.fireDelayed(new Runnable() {
+                // there's no player coming, so handle the "arrival" once the destination is loaded
+                warmDestination(new Runnable() {
                     @Override
                     public void run() {
-                        if (! remove(res)) return;
-                        Utils.warning("reservation for %s to %s timed out", getTraveler(), getDestination());
                         try {
-                            fromServer.sendReservationTimeout(remoteId);
-                        } catch (ServerException e) {
-                            Utils.severe(e, "send reservation timeout for %s to %s to %s failed:", getTraveler(), getDestination(), fromServer.getName());
+                            arrive();
+                        } catch (ReservationException e) {
+                            Utils.warning("reservation arrival for %s to %s to %s failed:", getTraveler(), getDestination(), fromServer.getName(), e.getMessage());
                         }
                     }
-                }, Config.getArrivalWindow());
+                });
+            } else {
+                // load the destination while the player is on the way
+                warmDestination(null);
+                // cancel the arrival if they never arrive
+                ReservationRegistry.expireAfter(this, Config.getArrivalWindow());
             }
 
         } catch (ReservationException e) {
@@ -604,9 +694,56 @@ public final class ReservationImpl implements Reservation {
         }
     }
 
+    // Called on the receiving side when the sender commits a tentative
+    // reservation this side approved. The player is already on the way, so
+    // nothing is sent back. The arrival checks are done again when they join.
+    public void commit() {
+        ReservationImpl pre = ReservationRegistry.get(fromServer, remoteId);
+        if ((pre != null) && pre.tentative && (playerName != null) && playerName.equals(pre.playerName)) {
+            remove(pre);
+            destinationChunks = pre.destinationChunks;
+        }
+        committed = true;
+        put(this);
+        Utils.debug("reservation for %s to %s from %s committed", getTraveler(), getDestination(), fromServer.getName());
+        // the tentative reservation expired before the commit came
+        if (destinationChunks == null)
+            warmDestination(null);
+        // cancel the arrival if they never arrive
+        ReservationRegistry.expireAfter(this, Config.getArrivalWindow());
+    }
+
+    // called on the receiving side when the sender won't be using a tentative reservation
+    public void cancelled() {
+        if (! tentative) return;
+        remove(this);
+        cancelDestination();
+        Utils.debug("tentative reservation for %s to %s from %s cancelled", getTraveler(), getDestination(), fromServer.getName());
+    }
+
     // called on the receiving side to handle arrival
     public void arrive() throws ReservationException {
         remove(this);
+        if (committed) {
+            // only the tentative reservation was checked, before the player set off
+            if ((player == null) && (playerName != null))
+                player = Global.plugin.getServer().getPlayer(playerName);
+            try {
+                checkArrival();
+            } catch (ReservationException e) {
+                cancelDestination();
+                try {
+                    fromServer.sendReservationDenied(remoteId, e.getMessage());
+                } catch (ServerException e2) {
+                    Utils.severe(e2, "send reservation denial for %s to %s to %s failed:", getTraveler(), getDestination(), fromServer.getName());
+                }
+                throw e;
+            }
+        }
+        if (destinationChunks != null) {
+            destinationChunks.finish();
+            destinationChunks = null;
+        }
 
         if (toGateLocal != null)
             toGateLocal.attach(fromGate);
@@ -645,6 +782,13 @@ public final class ReservationImpl implements Reservation {
 
     // called on the sending side to confirm reception of the valid reservation on the receiving side
     public void approved() {
+        if (tentative) {
+            Utils.debug("tentative reservation to send %s to %s was approved", getTraveler(), getDestination());
+            preApproved = true;
+            return;
+        }
+        if (departed) return;
+        departed = true;
         Utils.debug("reservation to send %s to %s was approved", getTraveler(), getDestination());
 
         if (player != null) {
@@ -665,6 +809,16 @@ public final class ReservationImpl implements Reservation {
     // called on the sending side to indicate a reservation was denied by the receiving side
     public void denied(final String reason) {
         remove(this);
+        if (tentative) {
+            Utils.debug("tentative reservation to send %s to %s was denied: %s", getTraveler(), getDestination(), reason);
+            PreReservations.denied(this);
+            return;
+        }
+        if (departed) {
+            // a committed reservation is refused once the player is over there
+            Utils.warning("%s was refused on arrival at %s: %s", getTraveler(), getDestination(), reason);
+            return;
+        }
         if (player == null)
             Utils.warning("reservation to send %s to %s was denied: %s", getTraveler(), getDestination(), reason);
         else {
@@ -695,6 +849,25 @@ public final class ReservationImpl implements Reservation {
 
     }
 
+    // called after the registry removed the reservation because its deadline passed
+    void expired() {
+        cancelDestination();
+        if (tentative) {
+            // nobody was waiting on it
+            Utils.debug("tentative reservation for %s to %s expired", getTraveler(), getDestination());
+            if (departing)
+                PreReservations.forget(this);
+            return;
+        }
+        Utils.warning("reservation for %s to %s timed out", getTraveler(), getDestination());
+        if (departing) return;
+        try {
+            fromServer.sendReservationTimeout(remoteId);
+        } catch (ServerException e) {
+            Utils.severe(e, "send reservation timeout for %s to %s to %s failed:", getTraveler(), getDestination(), fromServer.getName());
+        }
+    }
+
     // called on the sending side to indicate an expected arrival never happened on the receiving side
     public void timeout() {
         remove(this);
@@ -765,6 +938,23 @@ public final class ReservationImpl implements Reservation {
         }
     }
 
+    private void checkArrival() throws ReservationException {
+        if (playerName != null) {
+            try {
+                Permissions.connect(playerName);
+            } catch (PermissionsException e) {
+                throw new ReservationException(e.getMessage());
+            }
+        }
+        checkLocalArrivalGate();
+    }
+
+    private void cancelDestination() {
+        if (destinationChunks == null) return;
+        destinationChunks.cancel();
+        destinationChunks = null;
+    }
+
     private void checkLocalArrivalGate() throws ReservationException {
         if (toGateLocal == null) return;
 
@@ -905,6 +1095,38 @@ public final class ReservationImpl implements Reservation {
         }
     }
 
+    // Starts loading the chunks around the arrival gate so arrive() doesn't
+    // stall on them, and runs onReady once they're loaded.
+    private void warmDestination(Runnable onReady) {
+        long[] keys = null;
+        if (toGateLocal != null) {
+            keys = toGateLocal.getChunkKeys();
+            Vector center = toGateLocal.getCenter();
+            if ((keys == null) && (center != null))
+                keys = new long[] { GateMap.chunkKey(center.getBlockX() >> 4, center.getBlockZ() >> 4) };
+        }
+        if (keys == null) {
+            if (onReady != null) onReady.run();
+            return;
+        }
+        // the gate's own chunks first, then their neighbors in case the arrival spills over
+        Set<Long> around = new LinkedHashSet<Long>();
+        for (long key : keys)
+            around.add(key);
+        for (long key : keys) {
+            int cx = (int)(key >> 32);
+            int cz = (int)key;
+            for (int dx = -1; dx <= 1; dx++)
+                for (int dz = -1; dz <= 1; dz++)
+                    around.add(GateMap.chunkKey(cx + dx, cz + dz));
+        }
+        long[] chunkKeys = new long[around.size()];
+        int i = 0;
+        for (long key : around)
+            chunkKeys[i++] = key;
+        destinationChunks = ChunkWarmer.warm(toGateLocal.getWorld(), chunkKeys, WARM_DEADLINE, onReady);
+    }
+
     private void prepareDestination() {
         if (toGateLocal != null) {
             toLocation = toGateLocal.getSpawnLocation(fromLocation, fromDirection);
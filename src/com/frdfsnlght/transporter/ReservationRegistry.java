@@ -0,0 +1,239 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.entity.Entity;
+
+/**
+ * The reservations in progress on this server.
+ *
+ * Reservations are indexed by their local id, by the id their sending
+ * server gave them, by player name and by entity id. Reservations waiting
+ * on another server or a player have a deadline, and one timing wheel
+ * expires all of them instead of a task per reservation.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class ReservationRegistry {
+
+    // wheel resolution and size, one turn of the wheel is TICK * SLOTS millis
+    private static final long TICK = 250;
+    private static final int SLOTS = 128;
+
+    // upper bounds of the age buckets in the report, in millis
+    private static final long[] AGES = new long[] { 1000, 5000, 20000, 60000 };
+
+    private static final LongObjectMap<Entry> byLocalId = new LongObjectMap<Entry>();
+    // by sending server name, then remote id
+    private static final Map<String,LongObjectMap<Entry>> byRemoteId = new HashMap<String,LongObjectMap<Entry>>();
+    private static final Map<String,Entry> byPlayer = new HashMap<String,Entry>();
+    private static final LongObjectMap<Entry> byEntity = new LongObjectMap<Entry>();
+
+    // Entries stay in their slot when they're removed or rescheduled and are
+    // dropped when the slot comes around.
+    private static final List<Entry>[] wheel;
+    private static int wheelPos = 0;
+    private static long wheelTime = 0;
+    // entries with a deadline that haven't been removed
+    private static int waiting = 0;
+    private static int taskId = -1;
+
+    private static long timeouts = 0;
+
+    static {
+        @SuppressWarnings("unchecked")
+        List<Entry>[] w = new List[SLOTS];
+        for (int i = 0; i < w.length; i++)
+            w[i] = new ArrayList<Entry>();
+        wheel = w;
+    }
+
+    public static synchronized ReservationImpl get(long localId) {
+        return unwrap(byLocalId.get(localId));
+    }
+
+    public static synchronized ReservationImpl get(Server server, long remoteId) {
+        LongObjectMap<Entry> ids = byRemoteId.get(server.getName());
+        return (ids == null) ? null : unwrap(ids.get(remoteId));
+    }
+
+    public static synchronized ReservationImpl get(String playerName) {
+        return unwrap(byPlayer.get(playerName));
+    }
+
+    public static synchronized ReservationImpl get(Entity entity) {
+        return unwrap(byEntity.get(entity.getEntityId()));
+    }
+
+    public static synchronized boolean put(ReservationImpl r) {
+        if (byLocalId.containsKey(r.getLocalId())) return false;
+        Entry entry = new Entry(r);
+        byLocalId.put(r.getLocalId(), entry);
+        if (r.getFromServer() != null) {
+            LongObjectMap<Entry> ids = byRemoteId.get(r.getFromServer().getName());
+            if (ids == null) {
+                ids = new LongObjectMap<Entry>();
+                byRemoteId.put(r.getFromServer().getName(), ids);
+            }
+            ids.put(r.getRemoteId(), entry);
+        }
+        if (r.getPlayerName() != null)
+            byPlayer.put(r.getPlayerName(), entry);
+        if (r.getLocalEntityId() != 0)
+            byEntity.put(r.getLocalEntityId(), entry);
+        return true;
+    }
+
+    public static synchronized boolean remove(ReservationImpl r) {
+        Entry entry = byLocalId.remove(r.getLocalId());
+        if (entry == null) return false;
+        if (r.getFromServer() != null) {
+            LongObjectMap<Entry> ids = byRemoteId.get(r.getFromServer().getName());
+            if (ids != null) {
+                ids.remove(r.getRemoteId());
+                if (ids.isEmpty()) byRemoteId.remove(r.getFromServer().getName());
+            }
+        }
+        if ((r.getPlayerName() != null) && (byPlayer.get(r.getPlayerName()) == entry))
+            byPlayer.remove(r.getPlayerName());
+        if ((r.getLocalEntityId() != 0) && (byEntity.get(r.getLocalEntityId()) == entry))
+            byEntity.remove(r.getLocalEntityId());
+        if (entry.deadline != 0) {
+            entry.deadline = 0;
+            waiting--;
+        }
+        return true;
+    }
+
+    // Calls expired() on the reservation if it's still here after the delay.
+    public static synchronized void expireAfter(ReservationImpl r, long delay) {
+        Entry entry = byLocalId.get(r.getLocalId());
+        if (entry == null) return;
+        long now = System.currentTimeMillis();
+        if (waiting == 0) {
+            // the wheel is stopped, start it from now
+            wheelTime = now;
+            for (List<Entry> slot : wheel)
+                slot.clear();
+        }
+        if (entry.deadline == 0)
+            waiting++;
+        entry.deadline = now + delay;
+        long ticks = (entry.deadline - wheelTime + TICK - 1) / TICK;
+        wheel[(int)((wheelPos + Math.max(ticks, 1)) % SLOTS)].add(entry);
+        schedule();
+    }
+
+    public static synchronized int size() {
+        return byLocalId.size();
+    }
+
+    public static synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    // number of reservations younger than each of AGES, and the rest
+    public static synchronized int[] getAges() {
+        long now = System.currentTimeMillis();
+        int[] counts = new int[AGES.length + 1];
+        for (Entry entry : byLocalId.values()) {
+            long age = now - entry.added;
+            int i = 0;
+            while ((i < AGES.length) && (age >= AGES[i])) i++;
+            counts[i]++;
+        }
+        return counts;
+    }
+
+    public static void report(Context ctx) {
+        int[] ages = getAges();
+        ctx.send("%d reservations in progress, %d timed out", size(), getTimeouts());
+        for (int i = 0; i < ages.length; i++) {
+            if (i < AGES.length)
+                ctx.send("  under %ds: %d", AGES[i] / 1000, ages[i]);
+            else
+                ctx.send("  older: %d", ages[i]);
+        }
+    }
+
+    private static void schedule() {
+        if (taskId != -1) return;
+        taskId = Utils.fireDelayed(new Runnable() {
+            @Override
+            public void run() {
+                taskId = -1;
+                tick();
+            }
+        }, TICK);
+    }
+
+    private static void tick() {
+        List<ReservationImpl> expired = new ArrayList<ReservationImpl>();
+        synchronized (ReservationRegistry.class) {
+            long now = System.currentTimeMillis();
+            // after a long stall one turn visits every slot
+            for (int n = 0; (n < SLOTS) && (wheelTime + TICK <= now); n++) {
+                wheelPos = (wheelPos + 1) % SLOTS;
+                wheelTime += TICK;
+                List<Entry> slot = wheel[wheelPos];
+                List<Entry> later = null;
+                for (Entry entry : slot) {
+                    if (entry.deadline == 0) continue;
+                    if (entry.deadline > now) {
+                        // not this turn, or it was rescheduled into another slot too
+                        if (later == null) later = new ArrayList<Entry>();
+                        later.add(entry);
+                        continue;
+                    }
+                    remove(entry.reservation);
+                    expired.add(entry.reservation);
+                    timeouts++;
+                }
+                slot.clear();
+                if (later != null) slot.addAll(later);
+            }
+            if (wheelTime + TICK <= now)
+                wheelTime = now;
+            if (waiting > 0)
+                schedule();
+        }
+        for (ReservationImpl r : expired)
+            try {
+                r.expired();
+            } catch (Throwable t) {
+                Utils.severe(t, "reservation expiration failed:");
+            }
+    }
+
+    private static ReservationImpl unwrap(Entry entry) {
+        return (entry == null) ? null : entry.reservation;
+    }
+
+    private static final class Entry {
+        final ReservationImpl reservation;
+        final long added = System.currentTimeMillis();
+        long deadline = 0;
+
+        Entry(ReservationImpl reservation) {
+            this.reservation = reservation;
+        }
+    }
+
+}
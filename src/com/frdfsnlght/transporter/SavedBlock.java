@@ -31,7 +31,10 @@ public final class SavedBlock {
 
     public SavedBlock(Location location) {
         this.location = location.clone();
-        this.block = new BuildableBlock(location);
+        // save what will be there once any queued blocks are placed
+        block = BlockQueue.getPending(location);
+        if (block == null)
+            block = new BuildableBlock(location);
     }
 
     public SavedBlock(TypeMap map) throws BlockException {
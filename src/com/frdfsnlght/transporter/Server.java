@@ -109,6 +109,8 @@ public final class Server implements OptionsListener, RemoteServer {
         addMessageHandler("reservationDenied");
         addMessageHandler("reservationArrived");
         addMessageHandler("reservationTimeout");
+        addMessageHandler("reservationCommit");
+        addMessageHandler("reservationCancel");
         addMessageHandler("linkAdd");
         addMessageHandler("linkAddComplete");
         addMessageHandler("linkRemove");
@@ -1120,6 +1122,22 @@ public final class Server implements OptionsListener, RemoteServer {
         sendMessage(message);
     }
 
+    public void sendReservationCommit(ReservationImpl res) throws ServerException {
+        if (! isConnectionConnected())
+            throw new ServerException("server '%s' is offline", name);
+        TypeMap message = createMessage("reservationCommit");
+        message.put("reservation", res.encode());
+        sendMessage(message);
+    }
+
+    public void sendReservationCancel(long id) throws ServerException {
+        if (! isConnectionConnected())
+            throw new ServerException("server '%s' is offline", name);
+        TypeMap message = createMessage("reservationCancel");
+        message.put("id", id);
+        sendMessage(message);
+    }
+
     public void sendChat(Player player, String msg, Set<RemoteGateImpl> toGates) {
         if (! isConnectionConnected()) return;
         TypeMap message = createMessage("chat");
@@ -1634,6 +1652,27 @@ public final class Server implements OptionsListener, RemoteServer {
         res.timeout();
     }
 
+    private void receiveReservationCommit(TypeMap message) throws ServerException {
+        TypeMap resMsg = message.getMap("reservation");
+        if (resMsg == null)
+            throw new ServerException("missing reservation");
+        ReservationImpl res;
+        try {
+            res = new ReservationImpl(resMsg, this);
+            res.commit();
+        } catch (ReservationException e) {
+            throw new ServerException("invalid reservation: %s", e.getMessage());
+        }
+    }
+
+    private void receiveReservationCancel(TypeMap message) throws ServerException {
+        long id = message.getLong("id");
+        ReservationImpl res = ReservationRegistry.get(this, id);
+        // it may have expired already
+        if (res == null) return;
+        res.cancelled();
+    }
+
     private void receiveLinkAdd(TypeMap message) throws TransporterException {
         String playerName = message.getString("player");
 
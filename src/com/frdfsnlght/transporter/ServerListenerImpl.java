@@ -36,6 +36,7 @@ public class ServerListenerImpl implements Listener {
             Config.save(ctx);
             Gates.save(ctx);
         }
+        Permissions.onCommand(cmd);
     }
 
 }
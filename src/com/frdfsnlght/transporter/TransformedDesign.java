@@ -20,6 +20,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.block.BlockFace;
 
 /**
@@ -31,14 +32,15 @@ public final class TransformedDesign {
     private Design design;
     private Location location;
     private BlockFace direction;
+    private Template template;
     private int nextIndex = 0;
     private List<GateBlock> gateBlocks = new ArrayList<GateBlock>();
-    private Map<DesignBlockDetail,DesignBlockDetail> detailCache = new HashMap<DesignBlockDetail,DesignBlockDetail>();
 
     public TransformedDesign(Design design, Location location, BlockFace direction) {
         this.design = design;
         this.location = location;
         this.direction = direction;
+        template = design.getTemplate(direction);
     }
 
     public void reset() {
@@ -48,25 +50,21 @@ public final class TransformedDesign {
     public void clear() {
         reset();
         gateBlocks.clear();
-        detailCache.clear();
     }
 
     public boolean hasMoreBlocks() {
-        return nextIndex < design.getBlocks().size();
+        return nextIndex < template.size();
     }
 
     public GateBlock nextBlock() {
-        //Utils.debug("getting block %s of %s", nextIndex + 1, design.getBlocks().size());
-        if (nextIndex == design.getBlocks().size()) return null;
-        DesignBlock db = design.getBlocks().get(nextIndex++);
-        DesignBlockDetail detail;
-        if (detailCache.containsKey(db.getDetail())) {
-            detail = detailCache.get(db.getDetail());
-        } else {
-            detail = new DesignBlockDetail(db.getDetail(), direction);
-            detailCache.put(db.getDetail(), detail);
-        }
-        GateBlock gb = new GateBlock(detail, rotate(location, direction, db.getX(), db.getY(), db.getZ()));
+        //Utils.debug("getting block %s of %s", nextIndex + 1, template.size());
+        if (nextIndex == template.size()) return null;
+        int i = nextIndex++;
+        if (i < gateBlocks.size()) return gateBlocks.get(i);
+        GateBlock gb = new GateBlock(template.details[i], new Location(location.getWorld(),
+                location.getBlockX() + template.dx[i],
+                location.getBlockY() + template.dy[i],
+                location.getBlockZ() + template.dz[i]));
         //Utils.debug("return %s block at %s", gb.getDetail().getBuildBlock().getMaterial(), Utils.blockCoords(gb.getLocation()));
         gateBlocks.add(gb);
         return gb;
@@ -77,50 +75,98 @@ public final class TransformedDesign {
         return gateBlocks;
     }
 
-    private Location rotate(Location loc, BlockFace facing, int offX, int offY, int offZ) {
-        switch (facing) {
-            case NORTH:
-                return new Location(loc.getWorld(),
-                        loc.getBlockX() + offX,
-                        loc.getBlockY() + offY,
-                        loc.getBlockZ() + offZ);
-            case EAST:
-                return new Location(loc.getWorld(),
-                        loc.getBlockX() - offZ,
-                        loc.getBlockY() + offY,
-                        loc.getBlockZ() + offX);
-            case SOUTH:
-                return new Location(loc.getWorld(),
-                        loc.getBlockX() - offX,
-                        loc.getBlockY() + offY,
-                        loc.getBlockZ() - offZ);
-            case WEST:
-                return new Location(loc.getWorld(),
-                        loc.getBlockX() + offZ,
-                        loc.getBlockY() + offY,
-                        loc.getBlockZ() - offX);
-//            case NORTH:
-//                return new Location(loc.getWorld(),
-//                        loc.getBlockX() - offZ,
-//                        loc.getBlockY() + offY,
-//                        loc.getBlockZ() + offX);
-//            case EAST:
-//                return new Location(loc.getWorld(),
-//                        loc.getBlockX() - offX,
-//                        loc.getBlockY() + offY,
-//                        loc.getBlockZ() - offZ);
-//            case SOUTH:
-//                return new Location(loc.getWorld(),
-//                        loc.getBlockX() + offZ,
-//                        loc.getBlockY() + offY,
-//                        loc.getBlockZ() - offX);
-//            case WEST:
-//                return new Location(loc.getWorld(),
-//                        loc.getBlockX() + offX,
-//                        loc.getBlockY() + offY,
-//                        loc.getBlockZ() + offZ);
+    /**
+     * A design's blocks rotated to face one direction, with offsets relative
+     * to the design's origin. Each design builds one per direction when it's
+     * loaded, so matching and building only have to add the origin.
+     */
+    public static final class Template {
+
+        final int[] dx, dy, dz;
+        final DesignBlockDetail[] details;
+
+        // horizontal extent of the offsets
+        final int minX, minZ, maxX, maxZ;
+
+        Template(List<DesignBlock> blocks, BlockFace direction) {
+            int size = blocks.size();
+            dx = new int[size];
+            dy = new int[size];
+            dz = new int[size];
+            details = new DesignBlockDetail[size];
+
+            // blocks sharing a detail share the rotated detail too
+            Map<DesignBlockDetail,DesignBlockDetail> rotated = new HashMap<DesignBlockDetail,DesignBlockDetail>();
+            for (int i = 0; i < size; i++) {
+                DesignBlock db = blocks.get(i);
+                int offX = db.getX(), offY = db.getY(), offZ = db.getZ();
+                switch (direction) {
+                    case NORTH: dx[i] = offX; dz[i] = offZ; break;
+                    case EAST: dx[i] = -offZ; dz[i] = offX; break;
+                    case SOUTH: dx[i] = -offX; dz[i] = -offZ; break;
+                    case WEST: dx[i] = offZ; dz[i] = -offX; break;
+                    default:
+                        throw new IllegalArgumentException("invalid direction " + direction);
+                }
+                dy[i] = offY;
+                DesignBlockDetail detail = rotated.get(db.getDetail());
+                if (detail == null) {
+                    detail = new DesignBlockDetail(db.getDetail(), direction);
+                    rotated.put(db.getDetail(), detail);
+                }
+                details[i] = detail;
+            }
+
+            int x0 = 0, z0 = 0, x1 = 0, z1 = 0;
+            for (int i = 0; i < size; i++) {
+                x0 = Math.min(x0, dx[i]);
+                z0 = Math.min(z0, dz[i]);
+                x1 = Math.max(x1, dx[i]);
+                z1 = Math.max(z1, dz[i]);
+            }
+            minX = x0;
+            minZ = z0;
+            maxX = x1;
+            maxZ = z1;
+        }
+
+        public int size() {
+            return details.length;
+        }
+
+        // checks one matchable block against the world without allocating a location
+        boolean matches(World world, int x, int y, int z, int i) {
+            if (! details[i].isMatchable()) return true;
+            return details[i].getBuildBlock().matches(world.getBlockAt(x + dx[i], y + dy[i], z + dz[i]));
         }
-        return null;
+
+        boolean matches(World world, int x, int y, int z) {
+            for (int i = 0; i < details.length; i++)
+                if (! matches(world, x, y, z, i)) return false;
+            return true;
+        }
+
+        // true if any buildable block of the design would replace the type
+        boolean hasBuildableType(World world, int x, int y, int z, int type) {
+            for (int i = 0; i < details.length; i++)
+                if (details[i].isBuildable() &&
+                    (world.getBlockTypeIdAt(x + dx[i], y + dy[i], z + dz[i]) == type)) return true;
+            return false;
+        }
+
+        // same as above but against snapshots, safe to call off the main thread
+        boolean matches(RegionSnapshot blocks, int x, int y, int z, int i) {
+            if (! details[i].isMatchable()) return true;
+            int bx = x + dx[i], by = y + dy[i], bz = z + dz[i];
+            return details[i].getBuildBlock().matches(blocks.getTypeId(bx, by, bz), blocks.getData(bx, by, bz));
+        }
+
+        boolean matches(RegionSnapshot blocks, int x, int y, int z) {
+            for (int i = 0; i < details.length; i++)
+                if (! matches(blocks, x, y, z, i)) return false;
+            return true;
+        }
+
     }
 
 }
@@ -166,8 +166,11 @@ public class Transporter extends JavaPlugin {
         Context ctx = new Context();
         Realm.stop(ctx);
         Network.stop(ctx);
+        BlockQueue.flush();
         Config.save(ctx);
         Gates.save(ctx);
+        GateWriter.stop();
+        Markers.flush();
         ctx.sendLog("disabled");
         Global.plugin = null;
     }
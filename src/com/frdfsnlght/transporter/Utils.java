@@ -49,7 +49,10 @@ import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -390,6 +393,30 @@ public class Utils {
         return Global.plugin.getServer().getScheduler().callSyncMethod(Global.plugin, task);
     }
 
+    // Runs the tasks on a pool of threads and waits for all of them. The
+    // results are in the same order as the tasks. Used for loading files,
+    // so the tasks must not touch the server.
+    public static <T> List<Future<T>> invokeAll(List<Callable<T>> tasks) {
+        if (tasks.isEmpty()) return new ArrayList<Future<T>>();
+        int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Transporter loader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            return pool.invokeAll(tasks);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while loading");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     public static int worker(Runnable run) {
         if (! Global.enabled) return -1;
         return Global.plugin.getServer().getScheduler().scheduleAsyncDelayedTask(Global.plugin, run);
@@ -18,6 +18,7 @@ package com.frdfsnlght.transporter;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
 
@@ -35,6 +36,11 @@ public class WorldListenerImpl implements Listener {
             server.sendWorldLoad(event.getWorld());
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        Gates.onChunkLoaded(event.getChunk());
+    }
+
     @EventHandler(priority = EventPriority.MONITOR)
     public void onWorldUnload(WorldUnloadEvent event) {
         Utils.debug("world '%s' unloaded", event.getWorld().getName());
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2012 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import com.frdfsnlght.transporter.api.TypeMap;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary cache of the parsed contents of the YAML files in a folder.
+ *
+ * The YAML files are still the real configuration. A cached copy is only
+ * used while the file's modification time and size haven't changed, and
+ * anything the cache can't represent is just parsed every time. The cache
+ * file is memory mapped and entries are decoded as they're asked for.
+ *
+ * Loading is safe from any thread.
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class YAMLCache {
+
+    private static final String FILE_NAME = ".cache";
+    private static final int MAGIC = 0x54525043;
+    private static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte LIST = 6;
+    private static final byte MAP = 7;
+
+    private final File cacheFile;
+    private final Map<String,Entry> entries = new HashMap<String,Entry>();
+    private boolean dirty = false;
+
+    public static YAMLCache open(File folder) {
+        YAMLCache cache = new YAMLCache(new File(folder, FILE_NAME));
+        try {
+            cache.read();
+        } catch (Throwable t) {
+            Utils.debug("ignoring unreadable cache '%s': %s", cache.cacheFile.getPath(), t.getMessage());
+            cache.entries.clear();
+            cache.dirty = true;
+        }
+        return cache;
+    }
+
+    private YAMLCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    // Returns the contents of the file, from the cache if it's still current.
+    public TypeMap load(File file) {
+        long modified = file.lastModified();
+        long length = file.length();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(file.getName());
+        }
+        if ((entry != null) && (entry.modified == modified) && (entry.length == length)) {
+            try {
+                TypeMap conf = new TypeMap(file);
+                Map<?,?> map = (Map<?,?>)decode(entry.getData());
+                for (Object k : map.keySet())
+                    conf.set(k.toString(), map.get(k));
+                synchronized (this) {
+                    entry.used = true;
+                }
+                return conf;
+            } catch (RuntimeException e) {
+                Utils.debug("ignoring bad cache entry for '%s': %s", file.getName(), e.getMessage());
+            }
+        }
+
+        TypeMap conf = new TypeMap(file);
+        conf.load();
+        byte[] data = encode(conf);
+        synchronized (this) {
+            if (data == null)
+                entries.remove(file.getName());
+            else {
+                entry = new Entry(modified, length, data);
+                entry.used = true;
+                entries.put(file.getName(), entry);
+            }
+            dirty = true;
+        }
+        return conf;
+    }
+
+    // Writes the cache if anything changed, dropping entries for files that weren't loaded.
+    public synchronized void save() {
+        List<String> names = new ArrayList<String>(entries.keySet());
+        for (String name : names)
+            if (! entries.get(name).used) {
+                entries.remove(name);
+                dirty = true;
+            }
+        if (! dirty) return;
+
+        File tmpFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String,Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                byte[] name = e.getKey().getBytes(UTF8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(entry.modified);
+                out.writeLong(entry.length);
+                ByteBuffer data = entry.getData();
+                out.writeInt(data.remaining());
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                out.write(bytes);
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            if ((! tmpFile.renameTo(cacheFile)) && ((! cacheFile.delete()) || (! tmpFile.renameTo(cacheFile))))
+                throw new IOException("unable to rename " + tmpFile.getName());
+            dirty = false;
+        } catch (IOException ioe) {
+            Utils.warning("unable to save cache '%s': %s", cacheFile.getPath(), ioe.getMessage());
+            tmpFile.delete();
+        } finally {
+            if (out != null)
+                try {
+                    out.close();
+                } catch (IOException e) {}
+        }
+    }
+
+    private void read() throws IOException {
+        if (! cacheFile.isFile()) return;
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+        ByteBuffer buffer;
+        try {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) {
+            dirty = true;
+            return;
+        }
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            String name = readString(buffer);
+            long modified = buffer.getLong();
+            long length = buffer.getLong();
+            int size = buffer.getInt();
+            ByteBuffer data = buffer.slice();
+            data.limit(size);
+            buffer.position(buffer.position() + size);
+            entries.put(name, new Entry(modified, length, data));
+        }
+    }
+
+    // returns null if the value contains something that can't be cached
+    static byte[] encode(Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (! encode(out, value)) return null;
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    private static boolean encode(DataOutputStream out, Object value) throws IOException {
+        if (value == null)
+            out.writeByte(NULL);
+        else if (value instanceof String) {
+            out.writeByte(STRING);
+            byte[] str = ((String)value).getBytes(UTF8);
+            out.writeInt(str.length);
+            out.write(str);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer)value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long)value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double)value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean)value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>)value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object v : list)
+                if (! encode(out, v)) return false;
+        } else if (value instanceof Map) {
+            Map<?,?> map = (Map<?,?>)value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Object k : map.keySet()) {
+                if (! (k instanceof String)) return false;
+                encode(out, k);
+                if (! encode(out, map.get(k))) return false;
+            }
+        } else
+            return false;
+        return true;
+    }
+
+    static Object decode(ByteBuffer in) {
+        byte type = in.get();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return in.getInt();
+            case LONG:
+                return in.getLong();
+            case DOUBLE:
+                return in.getDouble();
+            case BOOLEAN:
+                return in.get() != 0;
+            case LIST:
+                int size = in.getInt();
+                List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(decode(in));
+                return list;
+            case MAP:
+                size = in.getInt();
+                Map<String,Object> map = new LinkedHashMap<String,Object>();
+                for (int i = 0; i < size; i++) {
+                    String k = (String)decode(in);
+                    map.put(k, decode(in));
+                }
+                return map;
+        }
+        throw new IllegalStateException("unknown type " + type);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] str = new byte[in.getInt()];
+        in.get(str);
+        return new String(str, UTF8);
+    }
+
+    private static final class Entry {
+        final long modified;
+        final long length;
+        private final ByteBuffer data;
+        boolean used = false;
+
+        Entry(long modified, long length, byte[] data) {
+            this(modified, length, ByteBuffer.wrap(data));
+        }
+
+        Entry(long modified, long length, ByteBuffer data) {
+            this.modified = modified;
+            this.length = length;
+            this.data = data;
+        }
+
+        // each caller gets its own position
+        ByteBuffer getData() {
+            return data.duplicate();
+        }
+    }
+
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
@@ -360,14 +361,10 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
     public void save() {
         if (file == null)
             throw new IllegalStateException("no file defined");
-        DumperOptions options = new DumperOptions();
-        //options.setAllowUnicode(true);
-        options.setIndent(4);
-        Yaml yaml = new Yaml(options);
         OutputStreamWriter writer = null;
         try {
             writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
-            yaml.dump(this, writer);
+            save(writer);
         } catch (IOException e) {
         } finally {
             try {
@@ -376,6 +373,14 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         }
     }
 
+    public void save(Writer writer) {
+        DumperOptions options = new DumperOptions();
+        //options.setAllowUnicode(true);
+        options.setIndent(4);
+        Yaml yaml = new Yaml(options);
+        yaml.dump(this, writer);
+    }
+
     public String encode() {
         return encodeMap(this);
     }
@@ -16,8 +16,10 @@
 package com.frdfsnlght.transporter.command;
 
 import com.frdfsnlght.transporter.Context;
+import com.frdfsnlght.transporter.GateLocks;
 import com.frdfsnlght.transporter.Gates;
 import com.frdfsnlght.transporter.PlayerListenerImpl;
+import com.frdfsnlght.transporter.ReservationRegistry;
 import com.frdfsnlght.transporter.Utils;
 import com.frdfsnlght.transporter.api.TransporterException;
 import java.util.ArrayList;
@@ -44,6 +46,8 @@ public class DebugCommand extends TrpCommandProcessor {
         List<String> cmds = new ArrayList<String>();
         if (ctx.isConsole())
             cmds.add(getPrefix(ctx) + GROUP + "submit <id>");
+        if (ctx.isConsole())
+            cmds.add(getPrefix(ctx) + GROUP + "reservations");
         if (ctx.isPlayer())
             cmds.add(getPrefix(ctx) + GROUP + "interact");
         return cmds;
@@ -89,6 +93,12 @@ public class DebugCommand extends TrpCommandProcessor {
             return;
         }
 
+        if ("reservations".startsWith(subCmd)) {
+            ReservationRegistry.report(ctx);
+            ctx.send("%d gate locks", GateLocks.size());
+            return;
+        }
+
         throw new CommandException("debug what?");
     }
 
@@ -41,7 +41,7 @@ import com.frdfsnlght.transporter.Utils;
 public final class Connection {
 
     private static final int HANDSHAKE_TIMEOUT = 5000;
-    private static final int PROTOCOL_VERSION = 8;
+    private static final int PROTOCOL_VERSION = 9;
     public static final int PROTOCOL_TIMEOUT = 8000;    // 8 seconds
 
     private static final byte ENCRYPTED_FLAG = 0x01;
@@ -77,6 +77,11 @@ public final class TestGate extends LocalGateImpl {
     @Override
     protected void onRemove() {}
 
+    @Override
+    protected long[] getChunkKeys() {
+        return null;
+    }
+
     @Override
     protected void onOpen() {}
 